@@ -0,0 +1,143 @@
+package com.segment.analytics.android.integrations.intercom.benchmark;
+
+import android.app.Application;
+import com.segment.analytics.Analytics;
+import com.segment.analytics.Properties;
+import com.segment.analytics.Traits;
+import com.segment.analytics.ValueMap;
+import com.segment.analytics.android.integrations.intercom.IntercomIntegration;
+import com.segment.analytics.integrations.GroupPayload;
+import com.segment.analytics.integrations.IdentifyPayload;
+import com.segment.analytics.integrations.Logger;
+import com.segment.analytics.integrations.TrackPayload;
+import io.intercom.android.sdk.Intercom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Measures {@link IntercomIntegration#track}, {@link IntercomIntegration#identify} and {@link
+ * IntercomIntegration#group} against an Intercom client that does nothing, so the numbers reflect
+ * the integration's own transformation cost. Run with the GC profiler to get allocated bytes per
+ * operation ({@code gc.alloc.rate.norm}).
+ */
+@State(Scope.Thread)
+public class IntercomBenchmark {
+
+  /** Payload shape: a handful of fields, or a realistically large payload. */
+  @Param({"small", "large"})
+  public String shape;
+
+  private IntercomIntegration integration;
+  private TrackPayload track;
+  private TrackPayload orderCompleted;
+  private IdentifyPayload identify;
+  private GroupPayload group;
+
+  @Setup
+  public void setUp() {
+    final Intercom intercom = mock(Intercom.class, withSettings().stubOnly());
+    IntercomIntegration.Provider provider =
+        new IntercomIntegration.Provider() {
+          @Override
+          public Intercom get() {
+            return intercom;
+          }
+        };
+    IntercomIntegration.Initializer initializer =
+        new IntercomIntegration.Initializer() {
+          @Override
+          public void initialize(Application application, String mobileApiKey, String appId) {}
+        };
+    integration =
+        new IntercomIntegration(
+            provider,
+            initializer,
+            null,
+            new ValueMap().putValue("mobileApiKey", "key").putValue("appId", "app"),
+            Logger.with(Analytics.LogLevel.NONE));
+
+    boolean large = "large".equals(shape);
+    int fields = large ? 40 : 4;
+
+    Properties properties = new Properties();
+    for (int i = 0; i < fields; i++) {
+      properties.putValue("property" + i, i % 2 == 0 ? "value" + i : (Object) i);
+    }
+    if (large) {
+      Map<String, Object> nested = new HashMap<>();
+      nested.put("city", "San Francisco");
+      nested.put("state", "California");
+      properties.putValue("address", nested);
+      properties.putValue("tags", Arrays.asList("a", "b", "c"));
+    }
+    track = new TrackPayload.Builder().userId("123").event("Viewed Article").properties(properties)
+        .build();
+
+    Properties order = new Properties();
+    order.putAll(properties);
+    order.putValue("orderId", "12345").putValue("revenue", 100.0).putValue("currency", "USD");
+    Properties.Product[] products = new Properties.Product[large ? 20 : 2];
+    for (int i = 0; i < products.length; i++) {
+      products[i] = new Properties.Product("id" + i, "sku" + i, 10.0 * i);
+    }
+    order.putProducts(products);
+    orderCompleted = new TrackPayload.Builder().userId("123").event("Order Completed")
+        .properties(order).build();
+
+    Traits traits = new Traits().putName("Brennan").putEmail("testing@segment.com")
+        .putPhone("1112223333");
+    for (int i = 0; i < fields; i++) {
+      traits.putValue("trait" + i, i % 2 == 0 ? "value" + i : (Object) i);
+    }
+    Map<String, Object> company = new HashMap<>();
+    company.put("id", "456");
+    company.put("name", "Acme");
+    company.put("plan", "enterprise");
+    company.put("monthlySpend", 1000);
+    traits.putValue("company", company);
+    Map<String, Object> options = new HashMap<>();
+    options.put("userHash", "567");
+    options.put("languageOverride", "en");
+    Map<String, Object> integrations = new HashMap<>();
+    integrations.put("Intercom", options);
+    identify = new IdentifyPayload.Builder().userId("123").traits(traits)
+        .integrations(integrations).build();
+
+    Traits groupTraits = new Traits();
+    groupTraits.putValue("name", "Acme").putValue("plan", "enterprise")
+        .putValue("createdAt", 1500000000L).putValue("monthlySpend", 1000);
+    for (int i = 0; i < fields; i++) {
+      groupTraits.putValue("trait" + i, "value" + i);
+    }
+    group = new GroupPayload.Builder().userId("123").groupId("456").traits(groupTraits).build();
+  }
+
+  @Benchmark
+  public void track() {
+    integration.track(track);
+  }
+
+  @Benchmark
+  public void trackWithRevenue() {
+    integration.track(orderCompleted);
+  }
+
+  @Benchmark
+  public void identify() {
+    integration.identify(identify);
+  }
+
+  @Benchmark
+  public void group() {
+    integration.group(group);
+  }
+}
@@ -0,0 +1,79 @@
+package com.segment.analytics.android.integrations.intercom.benchmark;
+
+import com.segment.analytics.android.integrations.intercom.IntercomIntegration;
+import io.intercom.android.sdk.Intercom;
+import io.intercom.android.sdk.UserAttributes;
+import io.intercom.android.sdk.identity.Registration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.mockito.Mockito.RETURNS_DEFAULTS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * An {@link IntercomIntegration.Provider} standing in for {@code Intercom.client()}, whose client
+ * records every call made to it, in order, as {@code method(arguments)}.
+ */
+final class RecordingProvider implements IntercomIntegration.Provider {
+
+  private final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+  private final Intercom intercom =
+      mock(
+          Intercom.class,
+          withSettings()
+              .stubOnly()
+              .defaultAnswer(
+                  new Answer<Object>() {
+                    @Override
+                    public Object answer(InvocationOnMock invocation) throws Throwable {
+                      calls.add(format(invocation));
+                      return RETURNS_DEFAULTS.answer(invocation);
+                    }
+                  }));
+
+  @Override
+  public Intercom get() {
+    return intercom;
+  }
+
+  /** Returns a copy of the calls recorded so far. */
+  List<String> calls() {
+    synchronized (calls) {
+      return new ArrayList<>(calls);
+    }
+  }
+
+  /** Returns the method name of a call recorded as {@code method(arguments)}. */
+  static String method(String call) {
+    return call.substring(0, call.indexOf('('));
+  }
+
+  private static String format(InvocationOnMock invocation) {
+    StringBuilder call = new StringBuilder(invocation.getMethod().getName()).append('(');
+    Object[] arguments = invocation.getArguments();
+    for (int i = 0; i < arguments.length; i++) {
+      if (i > 0) call.append(", ");
+      call.append(format(arguments[i]));
+    }
+    return call.append(')').toString();
+  }
+
+  private static Object format(Object argument) {
+    if (argument instanceof Registration) {
+      Registration registration = (Registration) argument;
+      return "Registration{userId="
+          + registration.getUserId()
+          + ", email="
+          + registration.getEmail()
+          + '}';
+    }
+    if (argument instanceof UserAttributes) {
+      return ((UserAttributes) argument).toMap();
+    }
+    return argument;
+  }
+}
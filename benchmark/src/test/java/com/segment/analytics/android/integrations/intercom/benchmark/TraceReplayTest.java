@@ -0,0 +1,84 @@
+package com.segment.analytics.android.integrations.intercom.benchmark;
+
+import com.segment.analytics.ValueMap;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Replays traces through the integration on the JVM. A recorded trace is replayed with
+ *
+ * <pre>
+ * ./gradlew :benchmark:test --tests '*TraceReplayTest.replayTrace' \
+ *     -Dreplay.trace=/path/to/trace.jsonl -Dreplay.speed=10 -Dreplay.concurrency=4 \
+ *     -Dreplay.settings='{"dispatchAsync": true}'
+ * </pre>
+ */
+public class TraceReplayTest {
+
+  @Test
+  public void replaySampleTrace() throws Exception {
+    TraceReplayer.Report report;
+    try (BufferedReader trace = open(null)) {
+      report = new TraceReplayer(new ValueMap(), 0, 2).replay(trace);
+    }
+    System.out.print(report);
+
+    assertEquals(6, report.latencies.length);
+    assertEquals(
+        Arrays.asList(
+            "registerIdentifiedUser",
+            "setUserHash",
+            "updateUser",
+            "logEvent",
+            "updateUser",
+            "logout"),
+        methods(report.sdkCalls.get("a1")));
+    assertEquals(
+        Arrays.asList("registerUnidentifiedUser", "updateUser", "logEvent"),
+        methods(report.sdkCalls.get("a2")));
+    assertTrue(report.percentile(50) <= report.percentile(99));
+  }
+
+  @Test
+  public void replayTrace() throws Exception {
+    String path = System.getProperty("replay.trace");
+    assumeTrue(path != null);
+    String settings = System.getProperty("replay.settings");
+    TraceReplayer replayer =
+        new TraceReplayer(
+            settings == null ? new ValueMap() : TraceReplayer.settings(settings),
+            Double.parseDouble(System.getProperty("replay.speed", "0")),
+            Integer.parseInt(System.getProperty("replay.concurrency", "1")));
+    try (BufferedReader trace = open(path)) {
+      System.out.print(replayer.replay(trace));
+    }
+  }
+
+  /** Opens the trace at {@code path}, or the sample trace if it is null. */
+  private static BufferedReader open(String path) throws Exception {
+    return new BufferedReader(
+        new InputStreamReader(
+            path == null
+                ? TraceReplayTest.class.getResourceAsStream("/sample-trace.jsonl")
+                : new FileInputStream(path),
+            StandardCharsets.UTF_8));
+  }
+
+  private static List<String> methods(List<String> calls) {
+    List<String> methods = new ArrayList<>();
+    for (String call : calls) {
+      methods.add(RecordingProvider.method(call));
+    }
+    return methods;
+  }
+}
@@ -0,0 +1,406 @@
+package com.segment.analytics.android.integrations.intercom.benchmark;
+
+import android.app.Application;
+import com.segment.analytics.Analytics;
+import com.segment.analytics.ValueMap;
+import com.segment.analytics.android.integrations.intercom.IntercomIntegration;
+import com.segment.analytics.integrations.BasePayload;
+import com.segment.analytics.integrations.GroupPayload;
+import com.segment.analytics.integrations.IdentifyPayload;
+import com.segment.analytics.integrations.Logger;
+import com.segment.analytics.integrations.ScreenPayload;
+import com.segment.analytics.integrations.TrackPayload;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Replays a recorded trace of Segment calls through {@link IntercomIntegration}, against clients
+ * from a {@link RecordingProvider}, and reports how the integration held up.
+ *
+ * <p>A trace has one JSON payload per line, as exported from Segment:
+ *
+ * <pre>
+ * {"type": "identify", "anonymousId": "a1", "userId": "123", "traits": {"name": "Ada"},
+ *     "integrations": {"Intercom": {"userHash": "567"}}, "timestamp": "2020-01-01T00:00:00Z"}
+ * {"type": "track", "anonymousId": "a1", "event": "Viewed Article", "properties": {"id": 1}}
+ * {"type": "group", "anonymousId": "a1", "groupId": "456", "traits": {"plan": "enterprise"}}
+ * {"type": "screen", "anonymousId": "a1", "name": "Home"}
+ * {"type": "reset", "anonymousId": "a1"}
+ * </pre>
+ *
+ * <p>Every {@code anonymousId} is replayed as its own device, with its own integration and Intercom
+ * client, so calls of one device keep their order. Devices are spread over {@code concurrency}
+ * threads. Calls are paced by their {@code timestamp}, sped up by {@code speed}; a speed of zero
+ * replays as fast as possible.
+ */
+final class TraceReplayer {
+
+  private static final String DEFAULT_DEVICE = "device";
+
+  private final ValueMap settings;
+  private final double speed;
+  private final int concurrency;
+
+  /**
+   * Creates a replayer whose integrations are configured with {@code settings}, to which the
+   * required {@code mobileApiKey} and {@code appId} are added.
+   */
+  TraceReplayer(ValueMap settings, double speed, int concurrency) {
+    this.settings =
+        new ValueMap(settings).putValue("mobileApiKey", "key").putValue("appId", "app");
+    this.speed = speed;
+    this.concurrency = Math.max(1, concurrency);
+  }
+
+  /** One line of a trace. */
+  private static final class Call {
+    final String device;
+    final long offsetMillis;
+    final String type;
+    final BasePayload payload;
+
+    Call(String device, long offsetMillis, String type, BasePayload payload) {
+      this.device = device;
+      this.offsetMillis = offsetMillis;
+      this.type = type;
+      this.payload = payload;
+    }
+  }
+
+  /** A replayed device. */
+  private final class Device {
+    final RecordingProvider provider = new RecordingProvider();
+    final IntercomIntegration integration =
+        new IntercomIntegration(
+            provider,
+            new IntercomIntegration.Initializer() {
+              @Override
+              public void initialize(Application application, String mobileApiKey, String appId) {}
+            },
+            null,
+            settings,
+            Logger.with(Analytics.LogLevel.NONE));
+  }
+
+  /** Replays the trace read from {@code trace}. */
+  Report replay(BufferedReader trace) throws IOException, InterruptedException {
+    List<Call> calls = parse(trace);
+
+    // Devices are created up front, so setting up integrations isn't measured.
+    final Map<String, Device> devices = new LinkedHashMap<>();
+    List<List<Call>> workloads = new ArrayList<>();
+    for (int i = 0; i < concurrency; i++) {
+      workloads.add(new ArrayList<Call>());
+    }
+    Map<String, Integer> workers = new LinkedHashMap<>();
+    for (Call call : calls) {
+      Integer worker = workers.get(call.device);
+      if (worker == null) {
+        worker = workers.size() % concurrency;
+        workers.put(call.device, worker);
+        devices.put(call.device, new Device());
+      }
+      workloads.get(worker).add(call);
+    }
+
+    final long[][] latencies = new long[concurrency][];
+    final long[] allocatedBytes = new long[concurrency];
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < concurrency; i++) {
+      final int worker = i;
+      final List<Call> workload = workloads.get(i);
+      Thread thread =
+          new Thread("Replay-" + i) {
+            @Override
+            public void run() {
+              try {
+                start.await();
+                long startNanos = System.nanoTime();
+                long allocated = allocatedBytes();
+                latencies[worker] = replay(devices, workload, startNanos);
+                allocatedBytes[worker] = allocatedBytes() - allocated;
+              } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+              }
+            }
+          };
+      thread.start();
+      threads.add(thread);
+    }
+
+    long startNanos = System.nanoTime();
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (failure.get() != null) {
+      throw new IllegalStateException("Replay failed", failure.get());
+    }
+    // Asynchronous dispatching and buffering are part of the work being measured.
+    for (Device device : devices.values()) {
+      device.integration.flush(10, TimeUnit.SECONDS);
+    }
+    long elapsedNanos = System.nanoTime() - startNanos;
+
+    long[] sorted = new long[calls.size()];
+    int length = 0;
+    long allocated = 0;
+    for (int i = 0; i < concurrency; i++) {
+      System.arraycopy(latencies[i], 0, sorted, length, latencies[i].length);
+      length += latencies[i].length;
+      allocated = allocatedBytes[i] < 0 || allocated < 0 ? -1 : allocated + allocatedBytes[i];
+    }
+    Arrays.sort(sorted);
+
+    Map<String, List<String>> sdkCalls = new LinkedHashMap<>();
+    for (Map.Entry<String, Device> device : devices.entrySet()) {
+      sdkCalls.put(device.getKey(), device.getValue().provider.calls());
+    }
+    return new Report(elapsedNanos, sorted, allocated, sdkCalls);
+  }
+
+  private long[] replay(Map<String, Device> devices, List<Call> workload, long startNanos)
+      throws InterruptedException {
+    long[] latencies = new long[workload.size()];
+    for (int i = 0; i < workload.size(); i++) {
+      Call call = workload.get(i);
+      if (speed > 0) {
+        long offsetNanos = TimeUnit.MILLISECONDS.toNanos(call.offsetMillis);
+        long dueNanos = startNanos + (long) (offsetNanos / speed);
+        long waitNanos = dueNanos - System.nanoTime();
+        if (waitNanos > 0) {
+          TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+      }
+      IntercomIntegration integration = devices.get(call.device).integration;
+      long callStart = System.nanoTime();
+      switch (call.type) {
+        case "identify":
+          integration.identify((IdentifyPayload) call.payload);
+          break;
+        case "track":
+          integration.track((TrackPayload) call.payload);
+          break;
+        case "group":
+          integration.group((GroupPayload) call.payload);
+          break;
+        case "screen":
+          integration.screen((ScreenPayload) call.payload);
+          break;
+        case "reset":
+          integration.reset();
+          break;
+        default:
+          throw new AssertionError("Unknown call " + call.type);
+      }
+      latencies[i] = System.nanoTime() - callStart;
+    }
+    return latencies;
+  }
+
+  /** Returns the bytes allocated by the current thread so far, or -1 if that isn't measured. */
+  private static long allocatedBytes() {
+    java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+    com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+    if (!allocations.isThreadAllocatedMemorySupported()) return -1;
+    return allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static List<Call> parse(BufferedReader trace) throws IOException {
+    List<Call> calls = new ArrayList<>();
+    String previousDevice = DEFAULT_DEVICE;
+    long firstMillis = -1;
+    long offsetMillis = 0;
+    int lineNumber = 0;
+    for (String line = trace.readLine(); line != null; line = trace.readLine()) {
+      lineNumber++;
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) continue;
+      Map<String, Object> json;
+      try {
+        json = toMap(new JSONObject(line));
+      } catch (JSONException e) {
+        throw new IOException("Malformed JSON on line " + lineNumber, e);
+      }
+
+      String type = String.valueOf(json.get("type"));
+      String anonymousId = (String) json.get("anonymousId");
+      String userId = (String) json.get("userId");
+      String device = anonymousId != null ? anonymousId : userId;
+      if (device == null) {
+        // A reset or an anonymous call belongs to whichever device made the previous call.
+        device = previousDevice;
+      }
+      previousDevice = device;
+
+      Object timestamp = json.get("timestamp");
+      if (timestamp != null) {
+        long millis = Instant.parse(String.valueOf(timestamp)).toEpochMilli();
+        if (firstMillis < 0) firstMillis = millis;
+        offsetMillis = Math.max(offsetMillis, millis - firstMillis);
+      }
+
+      calls.add(new Call(device, offsetMillis, type, toPayload(type, device, userId, json)));
+    }
+    return calls;
+  }
+
+  private static BasePayload toPayload(
+      String type, String device, String userId, Map<String, Object> json) {
+    BasePayload.Builder<?, ?> builder;
+    switch (type) {
+      case "identify":
+        builder = new IdentifyPayload.Builder().traits(map(json.get("traits")));
+        break;
+      case "track":
+        builder =
+            new TrackPayload.Builder()
+                .event(String.valueOf(json.get("event")))
+                .properties(map(json.get("properties")));
+        break;
+      case "group":
+        builder =
+            new GroupPayload.Builder()
+                .groupId(String.valueOf(json.get("groupId")))
+                .traits(map(json.get("traits")));
+        break;
+      case "screen":
+        builder =
+            new ScreenPayload.Builder()
+                .name(String.valueOf(json.get("name")))
+                .properties(map(json.get("properties")));
+        break;
+      case "reset":
+        return null;
+      default:
+        throw new IllegalArgumentException("Unsupported call type " + type);
+    }
+    builder.anonymousId(device).integrations(map(json.get("integrations")));
+    if (userId != null) {
+      builder.userId(userId);
+    }
+    return builder.build();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> map(Object value) {
+    return value instanceof Map
+        ? (Map<String, Object>) value
+        : Collections.<String, Object>emptyMap();
+  }
+
+  /** Parses integration settings given as a JSON object. */
+  static ValueMap settings(String json) throws JSONException {
+    return new ValueMap(toMap(new JSONObject(json)));
+  }
+
+  private static Map<String, Object> toMap(JSONObject json) throws JSONException {
+    Map<String, Object> map = new LinkedHashMap<>();
+    for (Iterator<String> keys = json.keys(); keys.hasNext(); ) {
+      String key = keys.next();
+      map.put(key, toValue(json.get(key)));
+    }
+    return map;
+  }
+
+  private static Object toValue(Object value) throws JSONException {
+    if (value instanceof JSONObject) return toMap((JSONObject) value);
+    if (value instanceof JSONArray) {
+      JSONArray array = (JSONArray) value;
+      List<Object> list = new ArrayList<>(array.length());
+      for (int i = 0; i < array.length(); i++) {
+        list.add(toValue(array.get(i)));
+      }
+      return list;
+    }
+    return value == JSONObject.NULL ? null : value;
+  }
+
+  /** The outcome of a replay. */
+  static final class Report {
+    final long elapsedNanos;
+    /** The time spent in each integration call, sorted. */
+    final long[] latencies;
+    /** Bytes allocated by the replaying threads, or -1 if the JVM doesn't measure them. */
+    final long allocatedBytes;
+    /** The Intercom calls made, in order, for each device. */
+    final Map<String, List<String>> sdkCalls;
+
+    Report(
+        long elapsedNanos,
+        long[] latencies,
+        long allocatedBytes,
+        Map<String, List<String>> sdkCalls) {
+      this.elapsedNanos = elapsedNanos;
+      this.latencies = latencies;
+      this.allocatedBytes = allocatedBytes;
+      this.sdkCalls = sdkCalls;
+    }
+
+    /** Returns the number of integration calls replayed per second. */
+    double throughput() {
+      return latencies.length * 1e9 / Math.max(1, elapsedNanos);
+    }
+
+    /** Returns the latency below which {@code percent} of the calls completed, in nanoseconds. */
+    long percentile(double percent) {
+      if (latencies.length == 0) return 0;
+      int index = (int) Math.ceil(percent / 100 * latencies.length) - 1;
+      return latencies[Math.max(0, Math.min(latencies.length - 1, index))];
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder report = new StringBuilder();
+      report.append(
+          String.format(
+              Locale.US,
+              "%d calls in %.1f ms, %.0f calls/s%n",
+              latencies.length,
+              elapsedNanos / 1e6,
+              throughput()));
+      report.append(
+          String.format(
+              Locale.US,
+              "latency p50=%dus p90=%dus p99=%dus max=%dus%n",
+              percentile(50) / 1000,
+              percentile(90) / 1000,
+              percentile(99) / 1000,
+              percentile(100) / 1000));
+      if (allocatedBytes >= 0) {
+        report.append(
+            String.format(
+                Locale.US,
+                "allocated %d bytes, %d bytes/call%n",
+                allocatedBytes,
+                allocatedBytes / Math.max(1, latencies.length)));
+      }
+      for (Map.Entry<String, List<String>> device : sdkCalls.entrySet()) {
+        report.append(device.getKey()).append(":\n");
+        for (String call : device.getValue()) {
+          report.append("  ").append(call).append('\n');
+        }
+      }
+      return report.toString();
+    }
+  }
+}
@@ -0,0 +1,193 @@
+package com.segment.analytics.android.integrations.intercom;
+
+import android.content.SharedPreferences;
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Remembers a fingerprint of every attribute last sent to Intercom for the most recent users, so
+ * that {@code identify} only has to send what changed. The fingerprints are persisted to {@link
+ * SharedPreferences} so the cache survives process restarts.
+ *
+ * <p>The fingerprints are an immutable snapshot that is replaced atomically on every commit, so
+ * diffing never locks.
+ */
+final class AttributeCache {
+
+  private static final String ATTRIBUTES_KEY = "attribute-fingerprints";
+  private static final int MAX_USERS = 4;
+
+  // Prefixes keep standard, custom and company fields from colliding in a user's fingerprint map.
+  private static final String STANDARD_PREFIX = "s:";
+  private static final String CUSTOM_PREFIX = "c:";
+  private static final String COMPANY_PREFIX = "o:";
+
+  private final SharedPreferences preferences;
+  /**
+   * Field fingerprints by user, least recently updated first. The map and the maps in it are never
+   * modified once published; every commit publishes a copy.
+   */
+  private final AtomicReference<LinkedHashMap<String, Map<String, Long>>> users;
+
+  AttributeCache(SharedPreferences preferences) {
+    this.preferences = preferences;
+    this.users = new AtomicReference<>(load(preferences));
+  }
+
+  /**
+   * Returns the subset of {@code update} that differs from what was last sent for {@code userKey}.
+   * Nothing is recorded until {@link #commit} is called with what was actually sent.
+   */
+  UserUpdate diff(String userKey, UserUpdate update) {
+    Map<String, Long> sent = users.get().get(userKey);
+    if (sent == null) return update;
+
+    UserUpdate.Builder delta = new UserUpdate.Builder();
+    for (Map.Entry<String, Object> entry : update.standard.entrySet()) {
+      if (changed(sent, STANDARD_PREFIX + entry.getKey(), entry.getValue())) {
+        delta.putStandard(entry.getKey(), entry.getValue());
+      }
+    }
+    for (Map.Entry<String, Object> entry : update.custom.entrySet()) {
+      if (changed(sent, CUSTOM_PREFIX + entry.getKey(), entry.getValue())) {
+        delta.putCustom(entry.getKey(), entry.getValue());
+      }
+    }
+    String companyId = update.companyId();
+    if (companyId != null) {
+      Map<String, Object> company = null;
+      String prefix = companyPrefix(companyId);
+      for (Map.Entry<String, Object> entry : update.company.entrySet()) {
+        String key = entry.getKey();
+        if (!UserUpdate.COMPANY_ID.equals(key)
+            && changed(sent, prefix + key, entry.getValue())) {
+          if (company == null) company = new LinkedHashMap<>();
+          company.put(key, entry.getValue());
+        }
+      }
+      if (company != null || !sent.containsKey(prefix + UserUpdate.COMPANY_ID)) {
+        if (company == null) company = new LinkedHashMap<>();
+        company.put(UserUpdate.COMPANY_ID, companyId);
+        delta.company(company);
+      }
+    }
+    return delta.build();
+  }
+
+  /** Records {@code sent} as delivered for {@code userKey} and persists the cache. */
+  void commit(String userKey, UserUpdate sent) {
+    LinkedHashMap<String, Map<String, Long>> current;
+    LinkedHashMap<String, Map<String, Long>> next;
+    do {
+      current = users.get();
+      next = new LinkedHashMap<>(current);
+      Map<String, Long> previous = next.remove(userKey);
+      Map<String, Long> fingerprints =
+          previous == null ? new HashMap<String, Long>() : new HashMap<>(previous);
+      for (Map.Entry<String, Object> entry : sent.standard.entrySet()) {
+        fingerprints.put(STANDARD_PREFIX + entry.getKey(), fingerprint(entry.getValue()));
+      }
+      for (Map.Entry<String, Object> entry : sent.custom.entrySet()) {
+        fingerprints.put(CUSTOM_PREFIX + entry.getKey(), fingerprint(entry.getValue()));
+      }
+      String companyId = sent.companyId();
+      if (companyId != null) {
+        String prefix = companyPrefix(companyId);
+        for (Map.Entry<String, Object> entry : sent.company.entrySet()) {
+          fingerprints.put(prefix + entry.getKey(), fingerprint(entry.getValue()));
+        }
+      }
+      next.put(userKey, fingerprints);
+      if (next.size() > MAX_USERS) {
+        next.remove(next.keySet().iterator().next());
+      }
+    } while (!users.compareAndSet(current, next));
+    save(next);
+  }
+
+  /** Drops everything recorded for {@code userKey}. */
+  void forget(String userKey) {
+    LinkedHashMap<String, Map<String, Long>> current;
+    LinkedHashMap<String, Map<String, Long>> next;
+    do {
+      current = users.get();
+      if (!current.containsKey(userKey)) return;
+      next = new LinkedHashMap<>(current);
+      next.remove(userKey);
+    } while (!users.compareAndSet(current, next));
+    save(next);
+  }
+
+  private static String companyPrefix(String companyId) {
+    return COMPANY_PREFIX + companyId + ':';
+  }
+
+  private static boolean changed(Map<String, Long> sent, String key, @Nullable Object value) {
+    Long previous = sent.get(key);
+    return previous == null || previous != fingerprint(value);
+  }
+
+  /** 64-bit FNV-1a hash of the value's string form, tagged with its type. */
+  static long fingerprint(@Nullable Object value) {
+    long hash = 0xcbf29ce484222325L;
+    String string = value == null ? "\u0000" : value.getClass().getName() + ':' + value;
+    for (int i = 0, length = string.length(); i < length; i++) {
+      hash ^= string.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  private static LinkedHashMap<String, Map<String, Long>> load(SharedPreferences preferences) {
+    LinkedHashMap<String, Map<String, Long>> users = new LinkedHashMap<>();
+    String json = preferences.getString(ATTRIBUTES_KEY, null);
+    if (json == null) return users;
+    try {
+      JSONObject root = new JSONObject(json);
+      Iterator<String> userKeys = root.keys();
+      while (userKeys.hasNext()) {
+        String userKey = userKeys.next();
+        JSONObject fields = root.getJSONObject(userKey);
+        Map<String, Long> fingerprints = new HashMap<>(fields.length());
+        Iterator<String> fieldKeys = fields.keys();
+        while (fieldKeys.hasNext()) {
+          String fieldKey = fieldKeys.next();
+          fingerprints.put(fieldKey, fields.getLong(fieldKey));
+        }
+        users.put(userKey, fingerprints);
+      }
+    } catch (JSONException e) {
+      // A corrupt cache only costs us one full update per user.
+      users.clear();
+    }
+    return users;
+  }
+
+  /**
+   * Persists {@code users}. When commits race, an older snapshot may be persisted last, which only
+   * costs resending some attributes after the next launch.
+   */
+  private void save(Map<String, Map<String, Long>> users) {
+    JSONObject root = new JSONObject();
+    try {
+      for (Map.Entry<String, Map<String, Long>> user : users.entrySet()) {
+        JSONObject fields = new JSONObject();
+        for (Map.Entry<String, Long> field : user.getValue().entrySet()) {
+          fields.put(field.getKey(), (long) field.getValue());
+        }
+        root.put(user.getKey(), fields);
+      }
+    } catch (JSONException e) {
+      throw new AssertionError(e);
+    }
+    preferences.edit().putString(ATTRIBUTES_KEY, root.toString()).apply();
+  }
+}
@@ -0,0 +1,140 @@
+package com.segment.analytics.android.integrations.intercom;
+
+import androidx.annotation.Nullable;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rewrites custom attribute and event metadata keys that Intercom would reject, and coerces values
+ * to the types Intercom accepts: dates become epoch seconds, and other numbers become an {@link
+ * Integer}, {@link Long} or {@link Double}.
+ *
+ * <p>Keys are trimmed, {@code .} and {@code $} are replaced with {@code _}, and keys longer than
+ * {@link #MAX_KEY_LENGTH} are truncated. Apps send the same few hundred keys over and over, so the
+ * sanitized form of the most recently used keys is memoized.
+ *
+ * <p>Different keys can sanitize to the same key, e.g. {@code a.b} and {@code a_b}. The first of
+ * them in the map keeps its value, and the later ones are dropped rather than overwriting it.
+ */
+final class AttributeNormalizer {
+
+  static final int MAX_KEY_LENGTH = 190;
+  private static final int MAX_CACHED_KEYS = 512;
+
+  // Cached in place of the sanitized key, compared by identity.
+  private static final String UNCHANGED = new String("unchanged");
+  private static final String INVALID = new String("invalid");
+
+  // Guarded by itself. Only lookups hold the lock; keys are sanitized outside of it.
+  private final Map<String, String> keys =
+      new LinkedHashMap<String, String>(MAX_CACHED_KEYS + 1, 1f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+          return size() > MAX_CACHED_KEYS;
+        }
+      };
+
+  /**
+   * Returns {@code attributes} with normalized keys and values. The same map is returned if nothing
+   * needed to change, so well-formed payloads aren't copied.
+   */
+  Map<String, Object> normalize(Map<String, Object> attributes) {
+    Map<String, Object> normalized = null;
+    int index = 0;
+    for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+      String key = key(entry.getKey());
+      Object value = value(entry.getValue());
+      if (normalized == null && (key != entry.getKey() || value != entry.getValue())) {
+        // Copy everything before the first entry that changed.
+        normalized = new LinkedHashMap<>(attributes.size());
+        int copied = 0;
+        for (Map.Entry<String, Object> previous : attributes.entrySet()) {
+          if (copied++ == index) break;
+          normalized.put(previous.getKey(), previous.getValue());
+        }
+      }
+      if (normalized != null && key != null && !normalized.containsKey(key)) {
+        normalized.put(key, value);
+      }
+      index++;
+    }
+    return normalized == null ? attributes : normalized;
+  }
+
+  /**
+   * Returns the sanitized form of {@code key}, which is the same instance if the key is valid, or
+   * {@code null} if nothing is left of it.
+   */
+  @Nullable
+  String key(String key) {
+    String sanitized;
+    synchronized (keys) {
+      sanitized = keys.get(key);
+    }
+    if (sanitized == null) {
+      sanitized = sanitize(key);
+      synchronized (keys) {
+        keys.put(key, sanitized.equals(key) ? UNCHANGED : sanitized);
+      }
+    }
+    if (sanitized == UNCHANGED) return key;
+    return sanitized == INVALID ? null : sanitized;
+  }
+
+  private static String sanitize(String key) {
+    String trimmed = key.trim();
+    if (trimmed.isEmpty()) return INVALID;
+    if (trimmed.length() > MAX_KEY_LENGTH) {
+      trimmed = trimmed.substring(0, MAX_KEY_LENGTH);
+    }
+    if (trimmed.indexOf('.') >= 0 || trimmed.indexOf('$') >= 0) {
+      trimmed = trimmed.replace('.', '_').replace('$', '_');
+    }
+    return trimmed;
+  }
+
+  /** Returns {@code value} as a type Intercom accepts, or the same instance if it already is. */
+  @Nullable
+  static Object value(@Nullable Object value) {
+    if (value == null
+        || value instanceof String
+        || value instanceof Boolean
+        || value instanceof Integer
+        || value instanceof Long
+        || value instanceof Float
+        || value instanceof Double) {
+      return value;
+    }
+    if (value instanceof Date) {
+      return ((Date) value).getTime() / 1000;
+    }
+    if (value instanceof BigDecimal) {
+      BigDecimal decimal = (BigDecimal) value;
+      try {
+        return decimal.longValueExact();
+      } catch (ArithmeticException e) {
+        return decimal.doubleValue();
+      }
+    }
+    if (value instanceof BigInteger) {
+      BigInteger integer = (BigInteger) value;
+      return integer.bitLength() < Long.SIZE ? (Object) integer.longValue() : integer.doubleValue();
+    }
+    if (value instanceof Byte || value instanceof Short || value instanceof AtomicInteger) {
+      return ((Number) value).intValue();
+    }
+    if (value instanceof AtomicLong) {
+      return ((Number) value).longValue();
+    }
+    if (value instanceof CharSequence) {
+      return value.toString();
+    }
+    return value;
+  }
+}
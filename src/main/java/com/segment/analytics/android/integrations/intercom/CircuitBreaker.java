@@ -0,0 +1,161 @@
+package com.segment.analytics.android.integrations.intercom;
+
+import androidx.annotation.Nullable;
+
+import com.segment.analytics.ValueMap;
+import com.segment.analytics.integrations.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Stops calling into the Intercom SDK while it misbehaves. Calls that throw, or that take longer
+ * than {@code slowCallMillis}, count as failures; after {@code failureThreshold} failures in a row
+ * the circuit opens, and calls that can be shed are shed for {@code openMillis}. After that a
+ * single call is let through as a probe: if it succeeds the circuit closes again, otherwise it
+ * stays open for another period.
+ *
+ * <pre>
+ * {
+ *   "failureThreshold": 5,
+ *   "slowCallMillis": 1000,
+ *   "openMillis": 30000
+ * }
+ * </pre>
+ *
+ * <p>Settings that aren't set default to the values above. Only the calls that can be shed are
+ * recorded, so a registration that succeeds doesn't close the circuit for events and updates.
+ */
+final class CircuitBreaker {
+
+  private static final String FAILURE_THRESHOLD = "failureThreshold";
+  private static final String SLOW_CALL_MILLIS = "slowCallMillis";
+  private static final String OPEN_MILLIS = "openMillis";
+
+  private static final int DEFAULT_FAILURE_THRESHOLD = 5;
+  private static final long DEFAULT_SLOW_CALL_MILLIS = 1000;
+  private static final long DEFAULT_OPEN_MILLIS = 30000;
+
+  enum State {
+    /** Calls are made. */
+    CLOSED,
+    /** Calls that can be shed are shed until the open period ends. */
+    OPEN,
+    /** A probe was let through; other calls are shed until it returns or the period ends. */
+    HALF_OPEN
+  }
+
+  /** An immutable state of the circuit. */
+  private static final class Snapshot {
+
+    static final Snapshot CLOSED = new Snapshot(State.CLOSED, 0, 0);
+
+    final State state;
+    /** Failures in a row while closed. */
+    final int failures;
+    /** When the next probe may be let through, unless closed. */
+    final long untilNanos;
+
+    Snapshot(State state, int failures, long untilNanos) {
+      this.state = state;
+      this.failures = failures;
+      this.untilNanos = untilNanos;
+    }
+  }
+
+  private final int failureThreshold;
+  private final long slowCallNanos;
+  private final long openNanos;
+  private final Logger logger;
+  private final Clock clock;
+  private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(Snapshot.CLOSED);
+
+  /** Returns the breaker described by {@code settings}, or {@code null} if there is none. */
+  @Nullable
+  static CircuitBreaker from(@Nullable ValueMap settings, Logger logger) {
+    if (settings == null) return null;
+    int failureThreshold = settings.getInt(FAILURE_THRESHOLD, DEFAULT_FAILURE_THRESHOLD);
+    long slowCallMillis = settings.getLong(SLOW_CALL_MILLIS, DEFAULT_SLOW_CALL_MILLIS);
+    long openMillis = settings.getLong(OPEN_MILLIS, DEFAULT_OPEN_MILLIS);
+    return new CircuitBreaker(
+        failureThreshold > 0 ? failureThreshold : DEFAULT_FAILURE_THRESHOLD,
+        TimeUnit.MILLISECONDS.toNanos(
+            slowCallMillis > 0 ? slowCallMillis : DEFAULT_SLOW_CALL_MILLIS),
+        TimeUnit.MILLISECONDS.toNanos(openMillis >= 0 ? openMillis : DEFAULT_OPEN_MILLIS),
+        logger,
+        Clock.SYSTEM);
+  }
+
+  CircuitBreaker(
+      int failureThreshold, long slowCallNanos, long openNanos, Logger logger, Clock clock) {
+    this.failureThreshold = failureThreshold;
+    this.slowCallNanos = slowCallNanos;
+    this.openNanos = openNanos;
+    this.logger = logger;
+    this.clock = clock;
+  }
+
+  /**
+   * Returns true if a call that can be shed should be made, letting it through as the probe if the
+   * open period has ended.
+   */
+  boolean allowCall() {
+    while (true) {
+      Snapshot current = snapshot.get();
+      if (current.state == State.CLOSED) return true;
+      long now = clock.nanoTime();
+      if (now - current.untilNanos < 0) return false;
+      // A probe that never returned doesn't keep the circuit open forever.
+      Snapshot probing = new Snapshot(State.HALF_OPEN, 0, now + openNanos);
+      if (snapshot.compareAndSet(current, probing)) return true;
+    }
+  }
+
+  /**
+   * Returns true while calls that can be shed are shed, so that the work of preparing them can be
+   * skipped too. Returns false once a probe is due, so the next call can be the probe.
+   */
+  boolean isOpen() {
+    Snapshot current = snapshot.get();
+    return current.state != State.CLOSED && clock.nanoTime() - current.untilNanos < 0;
+  }
+
+  /** Records a call that returned after {@code durationNanos}. */
+  void onReturned(long durationNanos) {
+    if (durationNanos > slowCallNanos) {
+      onFailed();
+      return;
+    }
+    while (true) {
+      Snapshot current = snapshot.get();
+      if (current == Snapshot.CLOSED) return;
+      if (snapshot.compareAndSet(current, Snapshot.CLOSED)) {
+        if (current.state != State.CLOSED) {
+          logger.debug("Intercom calls succeed again, closing the circuit.");
+        }
+        return;
+      }
+    }
+  }
+
+  /** Records a call that threw. */
+  void onFailed() {
+    while (true) {
+      Snapshot current = snapshot.get();
+      Snapshot next;
+      if (current.state == State.CLOSED && current.failures + 1 < failureThreshold) {
+        next = new Snapshot(State.CLOSED, current.failures + 1, 0);
+      } else {
+        next = new Snapshot(State.OPEN, 0, clock.nanoTime() + openNanos);
+      }
+      if (snapshot.compareAndSet(current, next)) {
+        if (next.state == State.OPEN && current.state != State.OPEN) {
+          logger.debug(
+              "Intercom calls keep failing or are slow, shedding them for %sms.",
+              TimeUnit.NANOSECONDS.toMillis(openNanos));
+        }
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,16 @@
+package com.segment.analytics.android.integrations.intercom;
+
+/** The time source of components that wait, so tests can move it forward instead of sleeping. */
+interface Clock {
+
+  Clock SYSTEM =
+      new Clock() {
+        @Override
+        public long nanoTime() {
+          return System.nanoTime();
+        }
+      };
+
+  /** Returns the current value of a monotonic clock, like {@link System#nanoTime()}. */
+  long nanoTime();
+}
@@ -0,0 +1,99 @@
+package com.segment.analytics.android.integrations.intercom;
+
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Remembers a fingerprint of every company field last sent for the current user, for the most
+ * recently sent companies, so that {@code group} and {@code identify} calls that re-send the same
+ * company only send what changed, or nothing at all.
+ *
+ * <p>A company has to be sent at least once per user to associate the user with it, so the cache
+ * is cleared on {@code reset} and whenever updates are sent for a different user.
+ *
+ * <p>The fingerprints are an immutable snapshot that is replaced atomically whenever a company is
+ * sent, so diffing never locks.
+ */
+final class CompanyCache {
+
+  private static final int MAX_COMPANIES = 32;
+
+  /** What was sent for one user, never modified once published. */
+  private static final class Snapshot {
+    static final Snapshot EMPTY =
+        new Snapshot(null, new LinkedHashMap<String, Map<String, Long>>());
+
+    @Nullable final String userKey;
+    /** Field fingerprints by company id, least recently sent first. */
+    final LinkedHashMap<String, Map<String, Long>> companies;
+
+    Snapshot(@Nullable String userKey, LinkedHashMap<String, Map<String, Long>> companies) {
+      this.userKey = userKey;
+      this.companies = companies;
+    }
+  }
+
+  private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(Snapshot.EMPTY);
+
+  /**
+   * Returns {@code update} with its company reduced to the fields that differ from what was last
+   * sent for {@code userKey}, or without a company if none of them did. Nothing is recorded until
+   * {@link #commit} is called with what was actually sent.
+   */
+  UserUpdate diff(String userKey, UserUpdate update) {
+    String companyId = update.companyId();
+    Snapshot current = snapshot.get();
+    if (companyId == null || !userKey.equals(current.userKey)) return update;
+    Map<String, Long> sent = current.companies.get(companyId);
+    if (sent == null) return update;
+
+    Map<String, Object> company = null;
+    for (Map.Entry<String, Object> entry : update.company.entrySet()) {
+      Long previous = sent.get(entry.getKey());
+      if (previous == null || previous != AttributeCache.fingerprint(entry.getValue())) {
+        if (company == null) {
+          company = new LinkedHashMap<>();
+          company.put(UserUpdate.COMPANY_ID, companyId);
+        }
+        company.put(entry.getKey(), entry.getValue());
+      }
+    }
+    return update.withCompany(company);
+  }
+
+  /** Records the company of {@code sent} as delivered for {@code userKey}. */
+  void commit(String userKey, UserUpdate sent) {
+    String companyId = sent.companyId();
+    if (companyId == null) return;
+    Snapshot current;
+    Snapshot next;
+    do {
+      current = snapshot.get();
+      // Updates for another user start over, since the company has to be sent to them in full.
+      LinkedHashMap<String, Map<String, Long>> companies =
+          userKey.equals(current.userKey)
+              ? new LinkedHashMap<>(current.companies)
+              : new LinkedHashMap<String, Map<String, Long>>();
+      Map<String, Long> previous = companies.remove(companyId);
+      Map<String, Long> fingerprints =
+          previous == null ? new HashMap<String, Long>() : new HashMap<>(previous);
+      for (Map.Entry<String, Object> entry : sent.company.entrySet()) {
+        fingerprints.put(entry.getKey(), AttributeCache.fingerprint(entry.getValue()));
+      }
+      companies.put(companyId, fingerprints);
+      if (companies.size() > MAX_COMPANIES) {
+        companies.remove(companies.keySet().iterator().next());
+      }
+      next = new Snapshot(userKey, companies);
+    } while (!snapshot.compareAndSet(current, next));
+  }
+
+  /** Forgets every company, so each is sent in full again. */
+  void clear() {
+    snapshot.set(Snapshot.EMPTY);
+  }
+}
@@ -0,0 +1,240 @@
+package com.segment.analytics.android.integrations.intercom;
+
+import androidx.annotation.Nullable;
+
+import com.segment.analytics.ValueMap;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+/**
+ * Rolls up chatty events into one summarized event per name and interval. Instead of one {@code
+ * logEvent} per occurrence, Intercom gets the number of occurrences as {@code count}, the sum of
+ * every numeric metadata value as {@code <key>_sum} and the summed price, once the interval that
+ * started with the first occurrence closes or when {@link #flush()} is called.
+ *
+ * <pre>
+ * { "events": ["Viewed Article", "Played Track"], "intervalMillis": 60000 }
+ * </pre>
+ *
+ * <p>Like the {@link UserUpdateCoalescer}, rollups are only ever kept for one user; an event for
+ * another user sends whatever is pending first, and sends happen after this object's lock is
+ * released, on the calling thread or the {@link FlushScheduler}'s executor.
+ */
+final class EventAggregator {
+
+  interface Sink {
+
+    void logEvent(String eventName, Map<String, Object> metadata);
+  }
+
+  private static final String EVENTS = "events";
+  private static final String INTERVAL_MILLIS = "intervalMillis";
+  private static final long DEFAULT_INTERVAL_MILLIS = 60 * 1000;
+
+  static final String COUNT = "count";
+  static final String SUM_SUFFIX = "_sum";
+  private static final String PRICE = "price";
+  private static final String AMOUNT = "amount";
+  private static final String CURRENCY = "currency";
+
+  /** The running totals of one event name, with sums kept in primitive arrays. */
+  private static final class Rollup {
+    long count;
+    final Map<String, Integer> indexes = new HashMap<>();
+    String[] keys = new String[4];
+    double[] sums = new double[4];
+    boolean[] fractional = new boolean[4];
+    long amount;
+    boolean priced;
+    @Nullable String currency;
+    boolean mixedCurrencies;
+
+    void add(String key, Number value) {
+      Integer index = indexes.get(key);
+      if (index == null) {
+        index = indexes.size();
+        if (index == keys.length) {
+          keys = Arrays.copyOf(keys, index * 2);
+          sums = Arrays.copyOf(sums, index * 2);
+          fractional = Arrays.copyOf(fractional, index * 2);
+        }
+        keys[index] = key;
+        indexes.put(key, index);
+      }
+      sums[index] += value.doubleValue();
+      if (!(value instanceof Integer || value instanceof Long)) {
+        fractional[index] = true;
+      }
+    }
+
+    void addPrice(Map<?, ?> price) {
+      Object amount = price.get(AMOUNT);
+      if (amount instanceof Number) {
+        this.amount += ((Number) amount).longValue();
+        priced = true;
+      }
+      Object currency = price.get(CURRENCY);
+      if (currency != null) {
+        if (this.currency == null) {
+          this.currency = String.valueOf(currency);
+        } else if (!this.currency.equals(String.valueOf(currency))) {
+          mixedCurrencies = true;
+        }
+      }
+    }
+
+    Map<String, Object> toMetadata() {
+      Map<String, Object> metadata = new LinkedHashMap<>(indexes.size() + 2);
+      metadata.put(COUNT, count);
+      for (int i = 0, size = indexes.size(); i < size; i++) {
+        metadata.put(keys[i] + SUM_SUFFIX, fractional[i] ? (Object) sums[i] : (long) sums[i]);
+      }
+      if (priced || currency != null) {
+        Map<String, Object> price = new HashMap<>(4);
+        if (priced) price.put(AMOUNT, amount);
+        if (currency != null && !mixedCurrencies) price.put(CURRENCY, currency);
+        metadata.put(PRICE, price);
+      }
+      return metadata;
+    }
+  }
+
+  private final Sink sink;
+  private final Set<String> eventNames;
+  private final long intervalMillis;
+  private final FlushScheduler scheduler;
+
+  // Guarded by this.
+  private String pendingUserKey;
+  private final Map<String, Rollup> pending = new LinkedHashMap<>();
+  /** Counts intervals, so a close that was already handed off can't cut the next one short. */
+  private long interval;
+  private Future<?> close;
+
+  /** Returns the aggregator described by {@code settings}, or {@code null} if it has no events. */
+  @Nullable
+  static EventAggregator from(
+      @Nullable ValueMap settings, Sink sink, FlushScheduler scheduler) {
+    if (settings == null || !(settings.get(EVENTS) instanceof List)) return null;
+    Set<String> eventNames = new HashSet<>();
+    for (Object name : (List<?>) settings.get(EVENTS)) {
+      if (name != null) eventNames.add(String.valueOf(name));
+    }
+    if (eventNames.isEmpty()) return null;
+    long intervalMillis = settings.getLong(INTERVAL_MILLIS, DEFAULT_INTERVAL_MILLIS);
+    return new EventAggregator(sink, eventNames, Math.max(1, intervalMillis), scheduler);
+  }
+
+  EventAggregator(
+      Sink sink, Set<String> eventNames, long intervalMillis, FlushScheduler scheduler) {
+    this.sink = sink;
+    this.eventNames = eventNames;
+    this.intervalMillis = intervalMillis;
+    this.scheduler = scheduler;
+  }
+
+  /** Returns true if occurrences of {@code eventName} are rolled up. */
+  boolean aggregates(String eventName) {
+    return eventNames.contains(eventName);
+  }
+
+  /** Adds one occurrence of {@code eventName} with {@code metadata} to its rollup. */
+  void add(String userKey, String eventName, @Nullable Map<String, Object> metadata) {
+    Map<String, Rollup> flushed = null;
+    synchronized (this) {
+      if (!pending.isEmpty() && !pendingUserKey.equals(userKey)) {
+        flushed = take();
+      }
+      addLocked(userKey, eventName, metadata);
+    }
+    if (flushed != null) {
+      send(flushed);
+    }
+  }
+
+  /** Adds the occurrence to its rollup, holding this object's lock. */
+  private void addLocked(
+      String userKey, String eventName, @Nullable Map<String, Object> metadata) {
+    if (pending.isEmpty()) {
+      pendingUserKey = userKey;
+      final long opened = interval;
+      close =
+          scheduler.schedule(
+              new Runnable() {
+                @Override
+                public void run() {
+                  close(opened);
+                }
+              },
+              intervalMillis);
+    }
+    Rollup rollup = pending.get(eventName);
+    if (rollup == null) {
+      rollup = new Rollup();
+      pending.put(eventName, rollup);
+    }
+    rollup.count++;
+    if (metadata == null) return;
+    for (Map.Entry<String, Object> entry : metadata.entrySet()) {
+      Object value = entry.getValue();
+      if (value instanceof Number) {
+        rollup.add(entry.getKey(), (Number) value);
+      } else if (PRICE.equals(entry.getKey()) && value instanceof Map) {
+        rollup.addPrice((Map<?, ?>) value);
+      }
+    }
+  }
+
+  /** Sends the pending rollups if they belong to a user other than {@code userKey}. */
+  void flushUnless(String userKey) {
+    Map<String, Rollup> flushed;
+    synchronized (this) {
+      if (pending.isEmpty() || pendingUserKey.equals(userKey)) return;
+      flushed = take();
+    }
+    send(flushed);
+  }
+
+  /** Sends the pending rollups, if any. */
+  void flush() {
+    Map<String, Rollup> flushed;
+    synchronized (this) {
+      if (pending.isEmpty()) return;
+      flushed = take();
+    }
+    send(flushed);
+  }
+
+  private void close(long opened) {
+    Map<String, Rollup> flushed;
+    synchronized (this) {
+      if (interval != opened || pending.isEmpty()) return;
+      flushed = take();
+    }
+    send(flushed);
+  }
+
+  /** Returns the pending rollups and ends their interval, cancelling the interval's close. */
+  private Map<String, Rollup> take() {
+    Map<String, Rollup> rollups = new LinkedHashMap<>(pending);
+    pending.clear();
+    pendingUserKey = null;
+    interval++;
+    close.cancel(false);
+    close = null;
+    return rollups;
+  }
+
+  private void send(Map<String, Rollup> rollups) {
+    for (Map.Entry<String, Rollup> rollup : rollups.entrySet()) {
+      sink.logEvent(rollup.getKey(), rollup.getValue().toMetadata());
+    }
+  }
+}
@@ -0,0 +1,380 @@
+package com.segment.analytics.android.integrations.intercom;
+
+import androidx.annotation.Nullable;
+
+import com.segment.analytics.android.integrations.intercom.IntercomIntegration.MetricsListener.SdkCall;
+import com.segment.analytics.integrations.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of Intercom SDK calls in a memory-mapped file, so that calls which were
+ * made but not yet handed to the SDK survive the process dying.
+ *
+ * <p>The file starts with a header holding the offset of the first unacknowledged record, followed
+ * by records of {@code [length][crc32][entry]}. A record's length is written last, and a zero
+ * length ends the journal, so a record torn by a crash is never read back; the checksum catches
+ * anything else. The file is never forced to disk: it survives the process dying, not the device
+ * losing power.
+ *
+ * <p>The file has a fixed size. When an entry doesn't fit, acknowledged records are compacted away
+ * if the unacknowledged ones can be moved to the start of the file without overwriting themselves,
+ * which keeps compaction crash-safe; otherwise the entry is rejected.
+ */
+final class EventJournal {
+
+  /** A journaled SDK call. */
+  static final class Entry {
+    final SdkCall call;
+    /** The event name, user id or user hash, depending on the call. */
+    @Nullable final String argument;
+    @Nullable final Map<String, Object> metadata;
+    @Nullable final UserUpdate userUpdate;
+    /** The entry's position in the journal, or -1 if it could not be journaled. */
+    long sequence = -1;
+
+    Entry(
+        SdkCall call,
+        @Nullable String argument,
+        @Nullable Map<String, Object> metadata,
+        @Nullable UserUpdate userUpdate) {
+      this.call = call;
+      this.argument = argument;
+      this.metadata = metadata;
+      this.userUpdate = userUpdate;
+    }
+  }
+
+  private static final int MAGIC = 0x494a4e31; // "IJN1"
+  private static final int ACK_OFFSET = 4;
+  private static final int HEADER_SIZE = 8;
+  private static final int RECORD_HEADER_SIZE = 8;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final MappedByteBuffer buffer;
+  private final int capacity;
+  private final Logger logger;
+  private final CRC32 crc = new CRC32();
+  private List<Entry> recovered;
+
+  /** The offset of the first unacknowledged record. */
+  private int ackOffset;
+  /** The sequence number of the record at {@link #ackOffset}. */
+  private long ackSequence;
+  /** The offset after the last record. */
+  private int endOffset;
+  /** The sequence number the next appended record gets. */
+  private long nextSequence;
+
+  /**
+   * Opens the journal in {@code file}, creating it with {@code capacity} bytes if needed, and
+   * recovers the entries that were not acknowledged. An existing file of another size is recreated
+   * if it holds no entries, and otherwise keeps its size until the next launch.
+   */
+  static EventJournal open(File file, int capacity, Logger logger) throws IOException {
+    EventJournal journal = new EventJournal(file, capacity, logger);
+    if (journal.capacity != capacity && journal.recovered.isEmpty() && file.delete()) {
+      logger.verbose(
+          "Resizing the Intercom journal from %s to %s bytes.", journal.capacity, capacity);
+      journal = new EventJournal(file, capacity, logger);
+    }
+    return journal;
+  }
+
+  private EventJournal(File file, int capacity, Logger logger) throws IOException {
+    this.logger = logger;
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      long length = randomAccessFile.length();
+      if (length < HEADER_SIZE + RECORD_HEADER_SIZE) {
+        randomAccessFile.setLength(capacity);
+        length = capacity;
+      }
+      this.capacity = (int) Math.min(length, Integer.MAX_VALUE);
+      this.buffer =
+          randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, this.capacity);
+    } finally {
+      // The mapping stays valid after the file is closed.
+      randomAccessFile.close();
+    }
+    this.recovered = recover();
+  }
+
+  /**
+   * Returns the entries that were journaled but not acknowledged when the journal was last closed,
+   * and forgets them.
+   */
+  synchronized List<Entry> takeRecovered() {
+    List<Entry> entries = recovered;
+    recovered = new ArrayList<>();
+    return entries;
+  }
+
+  /** The sequence number the next appended entry will get. */
+  synchronized long nextSequence() {
+    return nextSequence;
+  }
+
+  /**
+   * Appends {@code entry} and assigns its sequence number. Returns false if the journal is full,
+   * in which case the entry keeps a sequence number of -1.
+   */
+  synchronized boolean append(Entry entry) {
+    byte[] bytes;
+    try {
+      bytes = encode(entry);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+    int size = RECORD_HEADER_SIZE + bytes.length;
+    if (endOffset + size > capacity && !compact(size)) {
+      logger.debug("Intercom journal is full, not journaling %s.", entry.call);
+      return false;
+    }
+
+    crc.reset();
+    crc.update(bytes, 0, bytes.length);
+    buffer.position(endOffset + RECORD_HEADER_SIZE);
+    buffer.put(bytes);
+    buffer.putInt(endOffset + 4, (int) crc.getValue());
+    terminate(endOffset + size);
+    // Publishes the record.
+    buffer.putInt(endOffset, bytes.length);
+
+    endOffset += size;
+    entry.sequence = nextSequence++;
+    return true;
+  }
+
+  /** Acknowledges every record with a sequence number lower than {@code sequence}. */
+  synchronized void acknowledge(long sequence) {
+    if (sequence <= ackSequence) return;
+    int offset = ackOffset;
+    for (long i = ackSequence; i < sequence && offset < endOffset; i++) {
+      offset += RECORD_HEADER_SIZE + buffer.getInt(offset);
+    }
+    buffer.putInt(ACK_OFFSET, offset);
+    ackOffset = offset;
+    ackSequence = Math.min(sequence, nextSequence);
+    if (ackOffset == endOffset && ackOffset != HEADER_SIZE) {
+      // Everything is acknowledged: start over at the beginning of the file.
+      terminate(HEADER_SIZE);
+      buffer.putInt(ACK_OFFSET, HEADER_SIZE);
+      ackOffset = endOffset = HEADER_SIZE;
+    }
+  }
+
+  /** Moves the unacknowledged records to the start of the file if that is crash-safe. */
+  private boolean compact(int size) {
+    int live = endOffset - ackOffset;
+    // The moved records and their terminator must not overlap the records at the old offset.
+    if (HEADER_SIZE + live + size > capacity || HEADER_SIZE + live + 4 > ackOffset) return false;
+
+    byte[] records = new byte[live];
+    buffer.position(ackOffset);
+    buffer.get(records);
+    buffer.position(HEADER_SIZE);
+    buffer.put(records);
+    terminate(HEADER_SIZE + live);
+    // Until this write, recovery still reads the untouched records at the old offset.
+    buffer.putInt(ACK_OFFSET, HEADER_SIZE);
+    ackOffset = HEADER_SIZE;
+    endOffset = HEADER_SIZE + live;
+    logger.verbose("Compacted the Intercom journal to %s bytes.", live);
+    return true;
+  }
+
+  private void terminate(int offset) {
+    if (offset + 4 <= capacity) {
+      buffer.putInt(offset, 0);
+    }
+  }
+
+  private List<Entry> recover() {
+    List<Entry> entries = new ArrayList<>();
+    if (buffer.getInt(0) != MAGIC) {
+      terminate(HEADER_SIZE);
+      buffer.putInt(ACK_OFFSET, HEADER_SIZE);
+      buffer.putInt(0, MAGIC);
+      ackOffset = endOffset = HEADER_SIZE;
+      return entries;
+    }
+
+    int offset = buffer.getInt(ACK_OFFSET);
+    if (offset < HEADER_SIZE || offset > capacity) offset = HEADER_SIZE;
+    ackOffset = offset;
+    while (offset + RECORD_HEADER_SIZE <= capacity) {
+      int length = buffer.getInt(offset);
+      if (length <= 0 || length > capacity - offset - RECORD_HEADER_SIZE) break;
+      byte[] bytes = new byte[length];
+      buffer.position(offset + RECORD_HEADER_SIZE);
+      buffer.get(bytes);
+      crc.reset();
+      crc.update(bytes, 0, length);
+      if ((int) crc.getValue() != buffer.getInt(offset + 4)) break;
+
+      Entry entry;
+      try {
+        entry = decode(bytes);
+      } catch (IOException | IllegalArgumentException e) {
+        logger.error(e, "Skipping unreadable Intercom journal entry.");
+        entry = null;
+      }
+      if (entry != null) {
+        entry.sequence = nextSequence;
+        entries.add(entry);
+      }
+      nextSequence++;
+      offset += RECORD_HEADER_SIZE + length;
+    }
+    endOffset = offset;
+    // Anything after the last valid record is garbage from a torn write.
+    terminate(endOffset);
+    if (!entries.isEmpty()) {
+      logger.verbose("Recovered %s entries from the Intercom journal.", entries.size());
+    }
+    return entries;
+  }
+
+  private static final byte NULL = 'N';
+  private static final byte STRING = 'S';
+  private static final byte BOOLEAN = 'Z';
+  private static final byte INT = 'I';
+  private static final byte LONG = 'J';
+  private static final byte FLOAT = 'F';
+  private static final byte DOUBLE = 'D';
+  private static final byte MAP = 'M';
+
+  private static byte[] encode(Entry entry) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeUTF(entry.call.name());
+    writeValue(out, entry.argument);
+    writeMap(out, entry.metadata);
+    UserUpdate userUpdate = entry.userUpdate;
+    out.writeBoolean(userUpdate != null);
+    if (userUpdate != null) {
+      writeMap(out, userUpdate.standard);
+      writeMap(out, userUpdate.custom);
+      writeMap(out, userUpdate.company);
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private static Entry decode(byte[] bytes) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    SdkCall call = SdkCall.valueOf(in.readUTF());
+    String argument = (String) readValue(in);
+    Map<String, Object> metadata = readMap(in);
+    UserUpdate userUpdate = null;
+    if (in.readBoolean()) {
+      Map<String, Object> standard = readMap(in);
+      Map<String, Object> custom = readMap(in);
+      Map<String, Object> company = readMap(in);
+      userUpdate =
+          new UserUpdate(
+              standard == null ? new LinkedHashMap<String, Object>() : standard,
+              custom == null ? new LinkedHashMap<String, Object>() : custom,
+              company);
+    }
+    return new Entry(call, argument, metadata, userUpdate);
+  }
+
+  private static void writeMap(DataOutputStream out, @Nullable Map<String, ?> map)
+      throws IOException {
+    if (map == null) {
+      out.writeInt(-1);
+      return;
+    }
+    out.writeInt(map.size());
+    for (Map.Entry<String, ?> entry : map.entrySet()) {
+      writeValue(out, entry.getKey());
+      writeValue(out, entry.getValue());
+    }
+  }
+
+  @Nullable
+  private static Map<String, Object> readMap(DataInputStream in) throws IOException {
+    int size = in.readInt();
+    if (size < 0) return null;
+    Map<String, Object> map = new LinkedHashMap<>();
+    for (int i = 0; i < size; i++) {
+      map.put((String) readValue(in), readValue(in));
+    }
+    return map;
+  }
+
+  /** Writes a value keeping its type, since Intercom's builders cast some values. */
+  private static void writeValue(DataOutputStream out, @Nullable Object value)
+      throws IOException {
+    if (value == null) {
+      out.writeByte(NULL);
+    } else if (value instanceof Boolean) {
+      out.writeByte(BOOLEAN);
+      out.writeBoolean((Boolean) value);
+    } else if (value instanceof Integer) {
+      out.writeByte(INT);
+      out.writeInt((Integer) value);
+    } else if (value instanceof Long) {
+      out.writeByte(LONG);
+      out.writeLong((Long) value);
+    } else if (value instanceof Float) {
+      out.writeByte(FLOAT);
+      out.writeFloat((Float) value);
+    } else if (value instanceof Double) {
+      out.writeByte(DOUBLE);
+      out.writeDouble((Double) value);
+    } else if (value instanceof Map) {
+      // Only the price is nested.
+      out.writeByte(MAP);
+      writeMap(out, (Map<String, ?>) value);
+    } else {
+      byte[] string = String.valueOf(value).getBytes(UTF_8);
+      out.writeByte(STRING);
+      out.writeInt(string.length);
+      out.write(string);
+    }
+  }
+
+  @Nullable
+  private static Object readValue(DataInputStream in) throws IOException {
+    byte type = in.readByte();
+    switch (type) {
+      case NULL:
+        return null;
+      case BOOLEAN:
+        return in.readBoolean();
+      case INT:
+        return in.readInt();
+      case LONG:
+        return in.readLong();
+      case FLOAT:
+        return in.readFloat();
+      case DOUBLE:
+        return in.readDouble();
+      case MAP:
+        return readMap(in);
+      case STRING:
+        byte[] string = new byte[in.readInt()];
+        in.readFully(string);
+        return new String(string, UTF_8);
+      default:
+        throw new IOException("Unknown value type " + type);
+    }
+  }
+}
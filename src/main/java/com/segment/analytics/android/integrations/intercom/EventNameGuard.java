@@ -0,0 +1,138 @@
+package com.segment.analytics.android.integrations.intercom;
+
+import android.content.SharedPreferences;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Caps the number of distinct event names ever sent to Intercom, across launches, since Intercom
+ * caps them per workspace and a release that puts ids into event names would otherwise use up the
+ * quota. Names are remembered as 64-bit fingerprints in an open-addressing table that is at most
+ * half full, so checking a name takes constant time, and is persisted as 16 hex digits per name.
+ *
+ * <p>Once the cap is reached, new names are either rejected or replaced by a single overflow name.
+ * Lookups never lock; only adding a name, which happens at most once per name, is synchronized.
+ */
+final class EventNameGuard {
+
+  private static final String EVENT_NAMES_KEY = "event-name-fingerprints";
+  private static final int HEX_DIGITS = 16;
+  private static final long EMPTY = 0;
+
+  private final SharedPreferences preferences;
+  private final int maxNames;
+  @Nullable private final String overflowName;
+  private final AtomicLongArray table;
+  private final int mask;
+  private final AtomicInteger size = new AtomicInteger();
+
+  /**
+   * Creates a guard admitting {@code maxNames} names, and sending any further names as {@code
+   * overflowName}, or rejecting them if it is {@code null}.
+   */
+  EventNameGuard(SharedPreferences preferences, int maxNames, @Nullable String overflowName) {
+    this.preferences = preferences;
+    this.maxNames = maxNames;
+    this.overflowName = overflowName;
+    // Room for every name and the overflow name, at a load factor of at most one half.
+    int capacity = Integer.highestOneBit(Math.max(1, maxNames + 1)) << 2;
+    this.table = new AtomicLongArray(capacity);
+    this.mask = capacity - 1;
+    load();
+  }
+
+  /**
+   * Returns the name to send an event named {@code eventName} as: the name itself if it was seen
+   * before or fits under the cap, otherwise the overflow name, or {@code null} if the event should
+   * be dropped.
+   */
+  @Nullable
+  String admit(String eventName) {
+    long fingerprint = fingerprint(eventName);
+    if (contains(fingerprint)) return eventName;
+    synchronized (this) {
+      if (contains(fingerprint)) return eventName;
+      if (size.get() < maxNames) {
+        add(fingerprint, true);
+        return eventName;
+      }
+      if (overflowName == null) return null;
+      long overflow = fingerprint(overflowName);
+      if (!contains(overflow)) {
+        // The overflow name is allowed past the cap, so bucketing never drops events.
+        add(overflow, true);
+      }
+      return overflowName;
+    }
+  }
+
+  /** Returns the number of names seen. */
+  int size() {
+    return size.get();
+  }
+
+  private boolean contains(long fingerprint) {
+    for (int slot = (int) fingerprint & mask; ; slot = (slot + 1) & mask) {
+      long value = table.get(slot);
+      if (value == fingerprint) return true;
+      if (value == EMPTY) return false;
+    }
+  }
+
+  // Guarded by this once constructed.
+  private void add(long fingerprint, boolean persist) {
+    int slot = (int) fingerprint & mask;
+    while (table.get(slot) != EMPTY) {
+      slot = (slot + 1) & mask;
+    }
+    table.set(slot, fingerprint);
+    size.incrementAndGet();
+    if (persist) {
+      // Names are only ever appended.
+      String names = preferences.getString(EVENT_NAMES_KEY, "");
+      preferences.edit().putString(EVENT_NAMES_KEY, names + hex(fingerprint)).apply();
+    }
+  }
+
+  private void load() {
+    String names = preferences.getString(EVENT_NAMES_KEY, "");
+    int count = Math.min(names.length() / HEX_DIGITS, mask / 2);
+    for (int i = 0; i < count; i++) {
+      int start = i * HEX_DIGITS;
+      int middle = start + HEX_DIGITS / 2;
+      long fingerprint;
+      try {
+        fingerprint =
+            Long.parseLong(names.substring(start, middle), 16) << 32
+                | Long.parseLong(names.substring(middle, start + HEX_DIGITS), 16);
+      } catch (NumberFormatException e) {
+        // A corrupt entry can only let one name too many through.
+        continue;
+      }
+      if (fingerprint != EMPTY && !contains(fingerprint)) {
+        add(fingerprint, false);
+      }
+    }
+  }
+
+  private static String hex(long fingerprint) {
+    String hex = Long.toHexString(fingerprint);
+    StringBuilder padded = new StringBuilder(HEX_DIGITS);
+    for (int i = hex.length(); i < HEX_DIGITS; i++) {
+      padded.append('0');
+    }
+    return padded.append(hex).toString();
+  }
+
+  /** 64-bit FNV-1a hash of {@code name}, never {@link #EMPTY}. */
+  private static long fingerprint(String name) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0, length = name.length(); i < length; i++) {
+      hash ^= name.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    return hash == EMPTY ? 1 : hash;
+  }
+}
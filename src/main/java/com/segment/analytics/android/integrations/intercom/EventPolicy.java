@@ -0,0 +1,231 @@
+package com.segment.analytics.android.integrations.intercom;
+
+import androidx.annotation.Nullable;
+
+import com.segment.analytics.ValueMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Decides per event name whether an event is forwarded to Intercom, using deny and allow lists, a
+ * token bucket per name and probabilistic sampling. Names may contain {@code *} wildcards.
+ *
+ * <p>The settings are compiled once into matchers, and the resolved rule for each name is memoized,
+ * so the check for an event that was seen before is a map lookup plus the rule itself.
+ *
+ * <pre>
+ * {
+ *   "allow": ["Order *", "Signed Up"],
+ *   "deny": ["Debug *"],
+ *   "rateLimits": { "Scrolled *": { "perSecond": 1, "burst": 5 } },
+ *   "sampleRates": { "Player Progress": 0.1 }
+ * }
+ * </pre>
+ */
+final class EventPolicy {
+
+  private static final String ALLOW = "allow";
+  private static final String DENY = "deny";
+  private static final String RATE_LIMITS = "rateLimits";
+  private static final String SAMPLE_RATES = "sampleRates";
+  private static final String PER_SECOND = "perSecond";
+  private static final String BURST = "burst";
+
+  /**
+   * Names beyond this many are resolved on every call instead of being memoized, which also means
+   * they get a fresh token bucket every time and are not rate limited.
+   */
+  private static final int MAX_CACHED_RULES = 1024;
+
+  /** Matches names against exact entries first, then against wildcard entries in order. */
+  private static final class Matcher<T> {
+    private final Map<String, T> exact = new HashMap<>();
+    private final List<Pattern> patterns = new ArrayList<>();
+    private final List<T> patternValues = new ArrayList<>();
+
+    void add(String name, T value) {
+      if (name.indexOf('*') < 0) {
+        exact.put(name, value);
+        return;
+      }
+      StringBuilder regex = new StringBuilder();
+      int start = 0;
+      for (int star = name.indexOf('*'); star >= 0; star = name.indexOf('*', start)) {
+        if (star > start) regex.append(Pattern.quote(name.substring(start, star)));
+        regex.append(".*");
+        start = star + 1;
+      }
+      if (start < name.length()) regex.append(Pattern.quote(name.substring(start)));
+      patterns.add(Pattern.compile(regex.toString(), Pattern.DOTALL));
+      patternValues.add(value);
+    }
+
+    boolean isEmpty() {
+      return exact.isEmpty() && patterns.isEmpty();
+    }
+
+    @Nullable
+    T match(String name) {
+      T value = exact.get(name);
+      if (value != null) return value;
+      for (int i = 0, size = patterns.size(); i < size; i++) {
+        if (patterns.get(i).matcher(name).matches()) return patternValues.get(i);
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Token bucket implemented as a generic cell rate algorithm, so that taking a token is a single
+   * compare-and-set on the theoretical arrival time of the next event.
+   */
+  private static final class TokenBucket {
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final AtomicLong theoreticalArrival = new AtomicLong(Long.MIN_VALUE);
+
+    TokenBucket(double perSecond, int burst) {
+      this.intervalNanos = (long) (1e9 / perSecond);
+      this.toleranceNanos = intervalNanos * (Math.max(1, burst) - 1);
+    }
+
+    boolean tryAcquire(long now) {
+      while (true) {
+        long arrival = theoreticalArrival.get();
+        long next = Math.max(arrival, now);
+        if (next - now > toleranceNanos) return false;
+        if (theoreticalArrival.compareAndSet(arrival, next + intervalNanos)) return true;
+      }
+    }
+  }
+
+  private static final class RateLimit {
+    final double perSecond;
+    final int burst;
+
+    RateLimit(double perSecond, int burst) {
+      this.perSecond = perSecond;
+      this.burst = burst;
+    }
+  }
+
+  /** The resolved policy for one event name. */
+  private static final class Rule {
+    final boolean allowed;
+    @Nullable final TokenBucket bucket;
+    final double sampleRate;
+    final AtomicLong suppressed = new AtomicLong();
+
+    Rule(boolean allowed, @Nullable TokenBucket bucket, double sampleRate) {
+      this.allowed = allowed;
+      this.bucket = bucket;
+      this.sampleRate = sampleRate;
+    }
+  }
+
+  private final Matcher<Boolean> allow = new Matcher<>();
+  private final Matcher<Boolean> deny = new Matcher<>();
+  private final Matcher<RateLimit> rateLimits = new Matcher<>();
+  private final Matcher<Double> sampleRates = new Matcher<>();
+  private final ConcurrentHashMap<String, Rule> rules = new ConcurrentHashMap<>();
+  private final AtomicLong uncachedSuppressed = new AtomicLong();
+
+  /** Returns the policy described by {@code settings}, or {@code null} if it has no rules. */
+  @Nullable
+  static EventPolicy from(@Nullable ValueMap settings) {
+    if (settings == null || settings.isEmpty()) return null;
+    return new EventPolicy(settings);
+  }
+
+  private EventPolicy(ValueMap settings) {
+    for (String name : strings(settings.get(ALLOW))) {
+      allow.add(name, Boolean.TRUE);
+    }
+    for (String name : strings(settings.get(DENY))) {
+      deny.add(name, Boolean.TRUE);
+    }
+    ValueMap limits = settings.getValueMap(RATE_LIMITS);
+    if (limits != null) {
+      for (String name : limits.keySet()) {
+        ValueMap limit = limits.getValueMap(name);
+        if (limit == null) continue;
+        double perSecond = limit.getDouble(PER_SECOND, 0);
+        if (perSecond > 0) {
+          rateLimits.add(name, new RateLimit(perSecond, limit.getInt(BURST, 1)));
+        }
+      }
+    }
+    ValueMap rates = settings.getValueMap(SAMPLE_RATES);
+    if (rates != null) {
+      for (String name : rates.keySet()) {
+        sampleRates.add(name, rates.getDouble(name, 1));
+      }
+    }
+  }
+
+  /** Returns true if the event should be forwarded, and counts it as suppressed otherwise. */
+  boolean allow(String name) {
+    Rule rule = rules.get(name);
+    boolean cached = rule != null;
+    if (!cached) {
+      rule = resolve(name);
+      if (rules.size() < MAX_CACHED_RULES) {
+        Rule previous = rules.putIfAbsent(name, rule);
+        rule = previous != null ? previous : rule;
+        cached = true;
+      }
+    }
+
+    if (rule.allowed
+        && (rule.bucket == null || rule.bucket.tryAcquire(System.nanoTime()))
+        && (rule.sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < rule.sampleRate)) {
+      return true;
+    }
+    (cached ? rule.suppressed : uncachedSuppressed).incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Returns the number of suppressed events per name. Names seen after the rule cache filled up are
+   * counted under {@code null}.
+   */
+  Map<String, Long> suppressedCounts() {
+    Map<String, Long> counts = new LinkedHashMap<>();
+    for (Map.Entry<String, Rule> entry : rules.entrySet()) {
+      long suppressed = entry.getValue().suppressed.get();
+      if (suppressed > 0) counts.put(entry.getKey(), suppressed);
+    }
+    long uncached = uncachedSuppressed.get();
+    if (uncached > 0) counts.put(null, uncached);
+    return Collections.unmodifiableMap(counts);
+  }
+
+  private Rule resolve(String name) {
+    boolean allowed = deny.match(name) == null && (allow.isEmpty() || allow.match(name) != null);
+    RateLimit rateLimit = rateLimits.match(name);
+    Double sampleRate = sampleRates.match(name);
+    return new Rule(
+        allowed,
+        rateLimit == null ? null : new TokenBucket(rateLimit.perSecond, rateLimit.burst),
+        sampleRate == null ? 1 : sampleRate);
+  }
+
+  private static List<String> strings(@Nullable Object value) {
+    if (!(value instanceof List)) return Collections.emptyList();
+    List<?> list = (List<?>) value;
+    List<String> strings = new ArrayList<>(list.size());
+    for (Object item : list) {
+      if (item != null) strings.add(String.valueOf(item));
+    }
+    return strings;
+  }
+}
@@ -0,0 +1,175 @@
+package com.segment.analytics.android.integrations.intercom;
+
+import androidx.annotation.Nullable;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A read-only view of a payload map that hides some keys and all nested {@link Map} and {@link
+ * Collection} values, and optionally appends one extra entry. Used instead of copying properties
+ * and traits just to remove the few entries Intercom can't take.
+ *
+ * <p>The view reads through to the source, so the source must not change while the view is in use.
+ * Segment payloads are not modified after they are dispatched.
+ */
+final class FilteredMap extends AbstractMap<String, Object> {
+
+  private final Map<String, Object> source;
+  private final String[] excludedKeys;
+  @Nullable private final String extraKey;
+  @Nullable private final Object extraValue;
+  private int size = -1;
+  private Set<Map.Entry<String, Object>> entrySet;
+
+  FilteredMap(Map<String, Object> source, String... excludedKeys) {
+    this(source, null, null, excludedKeys);
+  }
+
+  /**
+   * Creates a view that also contains {@code extraKey}, which replaces any entry of the source with
+   * the same key.
+   */
+  FilteredMap(
+      Map<String, Object> source,
+      @Nullable String extraKey,
+      @Nullable Object extraValue,
+      String... excludedKeys) {
+    this.source = source;
+    this.excludedKeys = excludedKeys;
+    this.extraKey = extraKey;
+    this.extraValue = extraValue;
+  }
+
+  static boolean isNested(@Nullable Object value) {
+    return value instanceof Map || value instanceof Collection;
+  }
+
+  /** Returns the number of nested values hidden from the view, not counting excluded keys. */
+  int nestedCount() {
+    int count = 0;
+    for (Map.Entry<String, Object> entry : source.entrySet()) {
+      if (isNested(entry.getValue()) && !isExcluded(entry.getKey())) count++;
+    }
+    return count;
+  }
+
+  /** Returns the nested values hidden from the view, not counting excluded keys. */
+  List<Map.Entry<String, Object>> nested() {
+    List<Map.Entry<String, Object>> nested = null;
+    for (Map.Entry<String, Object> entry : source.entrySet()) {
+      if (isNested(entry.getValue()) && !isExcluded(entry.getKey())) {
+        if (nested == null) nested = new ArrayList<>();
+        nested.add(entry);
+      }
+    }
+    return nested == null ? Collections.<Map.Entry<String, Object>>emptyList() : nested;
+  }
+
+  private boolean isExcluded(Object key) {
+    if (extraKey != null && extraKey.equals(key)) return true;
+    for (String excludedKey : excludedKeys) {
+      if (excludedKey.equals(key)) return true;
+    }
+    return false;
+  }
+
+  @Override
+  public Object get(Object key) {
+    if (extraKey != null && extraKey.equals(key)) return extraValue;
+    if (isExcluded(key)) return null;
+    Object value = source.get(key);
+    return isNested(value) ? null : value;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    if (extraKey != null && extraKey.equals(key)) return true;
+    return !isExcluded(key) && source.containsKey(key) && !isNested(source.get(key));
+  }
+
+  @Override
+  public int size() {
+    if (size < 0) {
+      int count = 0;
+      Iterator<Map.Entry<String, Object>> iterator = entrySet().iterator();
+      while (iterator.hasNext()) {
+        iterator.next();
+        count++;
+      }
+      size = count;
+    }
+    return size;
+  }
+
+  @Override
+  public Set<Map.Entry<String, Object>> entrySet() {
+    if (entrySet == null) {
+      entrySet =
+          new AbstractSet<Map.Entry<String, Object>>() {
+            @Override
+            public Iterator<Map.Entry<String, Object>> iterator() {
+              return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+              return FilteredMap.this.size();
+            }
+          };
+    }
+    return entrySet;
+  }
+
+  private final class EntryIterator implements Iterator<Map.Entry<String, Object>> {
+    private final Iterator<Map.Entry<String, Object>> delegate = source.entrySet().iterator();
+    private Map.Entry<String, Object> next;
+    private boolean extraReturned = extraKey == null;
+
+    EntryIterator() {
+      advance();
+    }
+
+    private void advance() {
+      while (delegate.hasNext()) {
+        Map.Entry<String, Object> entry = delegate.next();
+        if (!isExcluded(entry.getKey()) && !isNested(entry.getValue())) {
+          next = entry;
+          return;
+        }
+      }
+      if (!extraReturned) {
+        extraReturned = true;
+        next = new SimpleImmutableEntry<>(extraKey, extraValue);
+        return;
+      }
+      next = null;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public Map.Entry<String, Object> next() {
+      if (next == null) throw new NoSuchElementException();
+      Map.Entry<String, Object> entry = next;
+      advance();
+      return entry;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
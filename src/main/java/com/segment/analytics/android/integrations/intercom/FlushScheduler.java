@@ -0,0 +1,75 @@
+package com.segment.analytics.android.integrations.intercom;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Closes the windows of the {@link UserUpdateCoalescer} and the {@link EventAggregator}. Both share
+ * one {@link Timer}, by default a thread started when the first window opens, and the timer never
+ * calls into Intercom itself: it hands the flushes to {@code executor}, which runs them where the
+ * integration runs its payloads, so they reach Intercom in order with those.
+ */
+final class FlushScheduler {
+
+  /** Runs tasks after a delay; tests use one they move forward by hand. */
+  interface Timer {
+
+    /** Runs {@code task} after {@code delayMillis}, unless the returned future is cancelled. */
+    Future<?> schedule(Runnable task, long delayMillis);
+  }
+
+  private final Executor executor;
+  private final Timer timer;
+
+  FlushScheduler(Executor executor) {
+    this(executor, new ThreadTimer());
+  }
+
+  FlushScheduler(Executor executor, Timer timer) {
+    this.executor = executor;
+    this.timer = timer;
+  }
+
+  /** Hands {@code flush} to the executor after {@code delayMillis}, unless cancelled before. */
+  Future<?> schedule(final Runnable flush, long delayMillis) {
+    return timer.schedule(
+        new Runnable() {
+          @Override
+          public void run() {
+            executor.execute(flush);
+          }
+        },
+        delayMillis);
+  }
+
+  private static final class ThreadTimer implements Timer {
+
+    // Guarded by this.
+    private ScheduledExecutorService scheduler;
+
+    @Override
+    public Future<?> schedule(Runnable task, long delayMillis) {
+      return scheduler().schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized ScheduledExecutorService scheduler() {
+      if (scheduler == null) {
+        scheduler =
+            Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                  @Override
+                  public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Segment-Intercom-Scheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                  }
+                });
+      }
+      return scheduler;
+    }
+  }
+}
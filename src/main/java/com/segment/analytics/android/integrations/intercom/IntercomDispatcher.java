@@ -0,0 +1,171 @@
+package com.segment.analytics.android.integrations.intercom;
+
+import com.segment.analytics.integrations.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs the integration's work on a single background thread, in the order it was dispatched, so
+ * that payload transformation and Intercom SDK calls stay off the thread Segment dispatches on.
+ * Since there is one writer, calls for a user reach Intercom in the order Segment sent them.
+ *
+ * <p>The queue is bounded; what happens when it is full is decided by the {@link
+ * BackpressurePolicy}.
+ */
+final class IntercomDispatcher {
+
+  enum BackpressurePolicy {
+    /** Wait for space in the queue. */
+    BLOCK,
+    /**
+     * Drop the oldest queued track. Identify, group, reset and flush work is never dropped, since
+     * losing it would attribute events to the wrong user; without a track to drop it waits.
+     */
+    DROP_OLDEST,
+    /** Drop the oldest queued track, or the incoming track; block for other tasks. */
+    DROP_TRACKS_FIRST;
+
+    static BackpressurePolicy from(String value) {
+      if (value == null) return BLOCK;
+      switch (value.toLowerCase(Locale.US)) {
+        case "dropoldest":
+          return DROP_OLDEST;
+        case "droptracksfirst":
+          return DROP_TRACKS_FIRST;
+        default:
+          return BLOCK;
+      }
+    }
+  }
+
+  private static final class Task {
+    final Runnable runnable;
+    /** Tracks and screens are the only tasks that may be dropped. */
+    final boolean track;
+
+    Task(Runnable runnable, boolean track) {
+      this.runnable = runnable;
+      this.track = track;
+    }
+  }
+
+  private final int capacity;
+  private final BackpressurePolicy policy;
+  private final Logger logger;
+  private final ArrayDeque<Task> queue;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+  private final AtomicLong dropped = new AtomicLong();
+
+  IntercomDispatcher(int capacity, BackpressurePolicy policy, Logger logger) {
+    this.capacity = capacity;
+    this.policy = policy;
+    this.logger = logger;
+    this.queue = new ArrayDeque<>(capacity);
+    Thread worker =
+        new Thread("Segment-Intercom-Dispatcher") {
+          @Override
+          public void run() {
+            loop();
+          }
+        };
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  /**
+   * Queues {@code runnable}. Tracks are marked because they are the only tasks the policies may
+   * shed; identify, group, reset and flush work is kept.
+   */
+  void dispatch(Runnable runnable, boolean track) {
+    Task task = new Task(runnable, track);
+    lock.lock();
+    try {
+      while (queue.size() >= capacity) {
+        if (policy != BackpressurePolicy.BLOCK && removeOldestTrack()) {
+          drop();
+        } else if (policy == BackpressurePolicy.DROP_TRACKS_FIRST && task.track) {
+          drop();
+          return;
+        } else {
+          notFull.awaitUninterruptibly();
+        }
+      }
+      queue.addLast(task);
+      notEmpty.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Queues {@code runnable} even if the queue is full, without blocking or dropping anything. Only
+   * for the integration's own, rare work, which may be dispatched from the worker thread itself.
+   */
+  void dispatchUnbounded(Runnable runnable) {
+    lock.lock();
+    try {
+      queue.addLast(new Task(runnable, false));
+      notEmpty.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** The number of tasks waiting to run. */
+  int queueDepth() {
+    lock.lock();
+    try {
+      return queue.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** The number of tasks dropped because the queue was full. */
+  long droppedCount() {
+    return dropped.get();
+  }
+
+  private boolean removeOldestTrack() {
+    for (Iterator<Task> iterator = queue.iterator(); iterator.hasNext(); ) {
+      if (iterator.next().track) {
+        iterator.remove();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void drop() {
+    long count = dropped.incrementAndGet();
+    logger.debug("Intercom dispatch queue is full, dropped %s tasks so far.", count);
+  }
+
+  private void loop() {
+    while (true) {
+      Task task;
+      lock.lock();
+      try {
+        while (queue.isEmpty()) {
+          notEmpty.awaitUninterruptibly();
+        }
+        task = queue.pollFirst();
+        notFull.signal();
+      } finally {
+        lock.unlock();
+      }
+      try {
+        task.runnable.run();
+      } catch (RuntimeException e) {
+        logger.error(e, "Intercom task failed.");
+      }
+    }
+  }
+}
@@ -0,0 +1,333 @@
+package com.segment.analytics.android.integrations.intercom;
+
+import android.app.Application;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import androidx.annotation.Nullable;
+
+import com.segment.analytics.integrations.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.intercom.android.sdk.Intercom;
+
+/**
+ * Initializes Intercom and resolves the client through the {@link IntercomIntegration.Provider},
+ * either right away or deferred until it is first needed or the main thread is idle. Work that
+ * arrives before the client is resolved is buffered, up to {@link #MAX_PENDING} runnables past
+ * which the oldest tracks are dropped, and replayed in order afterwards.
+ *
+ * <p>Intercom is always initialized on the main thread, where the integration used to initialize
+ * it eagerly. The buffered work is not replayed there: it is handed off to the {@link
+ * IntercomDispatcher} if there is one, otherwise posted, one runnable per message, to the looper
+ * of the thread that dispatched it, or else replayed by the next thread that dispatches work.
+ */
+final class IntercomInitializer {
+
+  enum Mode {
+    /** Initialize when the integration is created. */
+    EAGER,
+    /** Initialize when the first payload needs Intercom. */
+    FIRST_PAYLOAD,
+    /** Initialize the next time the main thread is idle. */
+    IDLE;
+
+    static Mode from(String value) {
+      if (value == null) return EAGER;
+      switch (value.toLowerCase(Locale.US)) {
+        case "firstpayload":
+          return FIRST_PAYLOAD;
+        case "idle":
+          return IDLE;
+        default:
+          return EAGER;
+      }
+    }
+  }
+
+  /** Buffered work beyond which the oldest tracks are dropped. */
+  static final int MAX_PENDING = 500;
+
+  private static final class Pending {
+    final Runnable runnable;
+    final boolean track;
+
+    Pending(Runnable runnable, boolean track) {
+      this.runnable = runnable;
+      this.track = track;
+    }
+  }
+
+  private final Mode mode;
+  private final Application application;
+  private final String mobileApiKey;
+  private final String appId;
+  private final IntercomIntegration.Initializer intercomInitializer;
+  private final IntercomIntegration.Provider provider;
+  @Nullable private final IntercomDispatcher dispatcher;
+  private final Logger logger;
+  private final AtomicLong dropped = new AtomicLong();
+
+  // Guarded by this.
+  private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+  private boolean scheduled;
+  private boolean replaying;
+  /** Where buffered work is replayed without a dispatcher: the looper it was first buffered on. */
+  @Nullable private Handler replayHandler;
+
+  private volatile Intercom client;
+  /** True once the client is resolved and everything buffered before it has been replayed. */
+  private volatile boolean ready;
+
+  /** Replays one buffered runnable, and hands off the next one the same way. */
+  private final Runnable replayNext =
+      new Runnable() {
+        @Override
+        public void run() {
+          boolean more = true;
+          try {
+            more = replayOne();
+          } finally {
+            // Keep going after a failure, so the rest isn't stranded.
+            if (more) handOff(this);
+          }
+        }
+      };
+
+  IntercomInitializer(
+      Mode mode,
+      Application application,
+      String mobileApiKey,
+      String appId,
+      IntercomIntegration.Initializer intercomInitializer,
+      IntercomIntegration.Provider provider,
+      @Nullable IntercomDispatcher dispatcher,
+      Logger logger) {
+    this.mode = mode;
+    this.application = application;
+    this.mobileApiKey = mobileApiKey;
+    this.appId = appId;
+    this.intercomInitializer = intercomInitializer;
+    this.provider = provider;
+    this.dispatcher = dispatcher;
+    this.logger = logger;
+
+    if (mode == Mode.EAGER) {
+      initialize();
+    } else if (mode == Mode.IDLE) {
+      scheduleOnIdle();
+    }
+  }
+
+  /**
+   * Returns the client, initializing Intercom on the main thread first if that hasn't happened yet,
+   * waiting for it if called from another thread. Buffered work is handed off, never replayed on
+   * the caller's thread.
+   */
+  Intercom client() {
+    Intercom client = this.client;
+    if (client != null) return client;
+    if (Looper.myLooper() == Looper.getMainLooper()) {
+      initialize();
+    } else {
+      initializeOnMainThread();
+    }
+    return this.client;
+  }
+
+  /** Returns true once the client is resolved and buffered work has been replayed. */
+  boolean isReady() {
+    return ready;
+  }
+
+  /** Runs {@code runnable} now if the client is ready, otherwise once it is. */
+  void run(Runnable runnable) {
+    run(runnable, false);
+  }
+
+  /**
+   * Runs {@code runnable} now if the client is ready, otherwise once it is. While the buffer is
+   * full, the oldest buffered track, or else an incoming {@code track}, is dropped.
+   */
+  void run(Runnable runnable, boolean track) {
+    if (ready) {
+      runnable.run();
+      return;
+    }
+    synchronized (this) {
+      if (!ready) {
+        if (dispatcher == null && replayHandler == null && Looper.myLooper() != null) {
+          replayHandler = new Handler(Looper.myLooper());
+        }
+        buffer(new Pending(runnable, track));
+        if (client == null) {
+          if (mode == Mode.FIRST_PAYLOAD) {
+            scheduleNow();
+          }
+          return;
+        }
+        if (replaying) return;
+        // Initialized, but with nowhere to hand the replay off to: replay on this thread.
+        replaying = true;
+      }
+    }
+    if (ready) {
+      runnable.run();
+      return;
+    }
+    boolean replayed = false;
+    try {
+      while (replayOne()) {}
+      replayed = true;
+    } finally {
+      if (!replayed) {
+        synchronized (this) {
+          // Let the next call pick up where this one failed.
+          replaying = false;
+        }
+      }
+    }
+  }
+
+  /** The number of buffered runnables dropped because the buffer was full. */
+  long droppedCount() {
+    return dropped.get();
+  }
+
+  private void buffer(Pending next) {
+    if (pending.size() >= MAX_PENDING) {
+      boolean removed = false;
+      for (Iterator<Pending> iterator = pending.iterator(); iterator.hasNext(); ) {
+        if (iterator.next().track) {
+          iterator.remove();
+          removed = true;
+          break;
+        }
+      }
+      // Identify, group and reset work is never dropped, even past the limit.
+      if (removed || next.track) {
+        long count = dropped.incrementAndGet();
+        logger.debug("Intercom isn't initialized yet, dropped %s buffered tracks so far.", count);
+      }
+      if (!removed && next.track) return;
+    }
+    pending.addLast(next);
+  }
+
+  /**
+   * Initializes Intercom and resolves the client. Buffered work is handed off to the dispatcher,
+   * or to the looper it was buffered on, so the main thread only pays for initializing Intercom.
+   */
+  private void initialize() {
+    synchronized (this) {
+      if (client != null) return;
+
+      long start = System.nanoTime();
+      intercomInitializer.initialize(application, mobileApiKey, appId);
+      client = provider.get();
+      logger.verbose(
+          "Intercom.initialize() took %sms, %s buffered payloads to replay.",
+          (System.nanoTime() - start) / 1000000,
+          pending.size());
+
+      if (pending.isEmpty()) {
+        ready = true;
+        return;
+      }
+      // Without a dispatcher or looper, the next call to run() replays on its own thread.
+      if (dispatcher == null && replayHandler == null) return;
+      replaying = true;
+    }
+    handOff(replayNext);
+  }
+
+  /**
+   * Runs the oldest buffered runnable, and returns false instead if there was none, in which case
+   * the client is ready. Work arriving meanwhile is buffered behind it, so the order is kept.
+   */
+  private boolean replayOne() {
+    Pending next;
+    synchronized (this) {
+      next = pending.pollFirst();
+      if (next == null) {
+        replaying = false;
+        ready = true;
+        return false;
+      }
+    }
+    next.runnable.run();
+    return true;
+  }
+
+  private void handOff(Runnable runnable) {
+    if (dispatcher != null) {
+      dispatcher.dispatchUnbounded(runnable);
+    } else {
+      replayHandler.post(runnable);
+    }
+  }
+
+  private void initializeOnMainThread() {
+    final CountDownLatch initialized = new CountDownLatch(1);
+    new Handler(Looper.getMainLooper())
+        .post(
+            new Runnable() {
+              @Override
+              public void run() {
+                try {
+                  initialize();
+                } finally {
+                  initialized.countDown();
+                }
+              }
+            });
+    boolean interrupted = false;
+    while (true) {
+      try {
+        initialized.await();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) Thread.currentThread().interrupt();
+  }
+
+  private void scheduleNow() {
+    if (scheduled) return;
+    scheduled = true;
+    new Handler(Looper.getMainLooper())
+        .post(
+            new Runnable() {
+              @Override
+              public void run() {
+                initialize();
+              }
+            });
+  }
+
+  private void scheduleOnIdle() {
+    scheduled = true;
+    new Handler(Looper.getMainLooper())
+        .post(
+            new Runnable() {
+              @Override
+              public void run() {
+                Looper.myQueue()
+                    .addIdleHandler(
+                        new MessageQueue.IdleHandler() {
+                          @Override
+                          public boolean queueIdle() {
+                            initialize();
+                            return false;
+                          }
+                        });
+              }
+            });
+  }
+}
@@ -1,26 +1,40 @@
 package com.segment.analytics.android.integrations.intercom;
 
 import android.app.Application;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
 import androidx.annotation.Nullable;
 
 import com.segment.analytics.Analytics;
 import com.segment.analytics.Properties;
 import com.segment.analytics.Traits;
 import com.segment.analytics.ValueMap;
+import com.segment.analytics.integrations.BasePayload;
 import com.segment.analytics.integrations.GroupPayload;
 import com.segment.analytics.integrations.IdentifyPayload;
 import com.segment.analytics.integrations.Integration;
 import com.segment.analytics.integrations.Logger;
+import com.segment.analytics.integrations.ScreenPayload;
 import com.segment.analytics.integrations.TrackPayload;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
-import io.intercom.android.sdk.Company;
 import io.intercom.android.sdk.Intercom;
-import io.intercom.android.sdk.UserAttributes;
-import io.intercom.android.sdk.identity.Registration;
+import io.intercom.android.sdk.push.IntercomPushClient;
 
 import static com.segment.analytics.internal.Utils.isNullOrEmpty;
 
@@ -29,31 +43,102 @@ import static com.segment.analytics.internal.Utils.isNullOrEmpty;
  * in-app messages are up to 10 times more effective than email too! Send the right messages, to the
  * right users, at exactly the right time.
  *
+ * <p>Segment calls the integration from its dispatch thread while apps may call {@link #reset()}
+ * and {@link #getUnderlyingInstance()} from any other thread. State kept between calls, like the
+ * caches, the registration and the screen and limit bookkeeping, is held in immutable snapshots
+ * that are replaced atomically, so reading it never waits for a lock. Registration changes, which
+ * are rare, hold a lock while making their SDK calls so those keep their order across threads. The
+ * normalizer's key memo and the buffers of the coalescer, the event aggregator, the journal and the
+ * trace are guarded by short locks. SDK calls keep the order of each calling thread, or the order
+ * of all calls with {@code dispatchAsync}.
+ *
  * @see <a href="https://developers.intercom.com/v2.0/docs/android-installation">Intercom for
  *     Android</a>
  */
 public class IntercomIntegration extends Integration<Intercom> {
 
-  public static final Factory FACTORY =
-      new Factory() {
-        @Override
-        public Integration<?> create(ValueMap settings, Analytics analytics) {
-          Logger logger = analytics.logger(INTERCOM_KEY);
+  public static final Factory FACTORY = factory(MetricsListener.NONE);
 
-          Application application = analytics.getApplication();
+  /** Returns a factory for integrations that report their measurements to {@code metrics}. */
+  public static Factory factory(final MetricsListener metrics) {
+    return new Factory() {
+      @Override
+      public Integration<?> create(ValueMap settings, Analytics analytics) {
+        Logger logger = analytics.logger(INTERCOM_KEY);
 
-          return new IntercomIntegration(Provider.REAL, application, settings, logger);
+        Application application = analytics.getApplication();
+        if (!ProcessPolicy.allows(application, settings.get(PROCESSES))) {
+          // Segment skips integrations its factory couldn't create.
+          logger.verbose(
+              "Not creating the Intercom integration in process %s.",
+              ProcessPolicy.currentProcessName(application));
+          return null;
         }
 
-        @Override
-        public String key() {
-          return INTERCOM_KEY;
-        }
-      };
+        return new IntercomIntegration(
+            Provider.REAL, Initializer.REAL, application, settings, logger, metrics);
+      }
 
-  private final Intercom intercom;
+      @Override
+      public String key() {
+        return INTERCOM_KEY;
+      }
+    };
+  }
+
+  private final IntercomInitializer initializer;
+  private final IntercomSdk sdk;
   private static final String INTERCOM_KEY = "Intercom";
   private final Logger logger;
+  private final MetricsListener metrics;
+  private final Application application;
+  private final PushClient pushClient;
+  @Nullable private final AttributeCache attributeCache;
+  @Nullable private final CompanyCache companyCache;
+  @Nullable private final UserUpdateCoalescer coalescer;
+  @Nullable private final EventAggregator aggregator;
+  @Nullable private final RegistrationStateMachine registration;
+  @Nullable private final IntercomDispatcher dispatcher;
+  @Nullable private final EventPolicy trackPolicy;
+  @Nullable private final ScreenPolicy screenPolicy;
+  @Nullable private final AttributeNormalizer normalizer;
+  @Nullable private final NestedValueFlattener flattener;
+  @Nullable private final MappingPlan mapping;
+  @Nullable private final IntercomLimits limits;
+  @Nullable private final PushTokenCache pushTokens;
+
+  // Integration settings
+  private static final String SEND_CHANGED_ATTRIBUTES_ONLY = "sendChangedAttributesOnly";
+  private static final String SKIP_UNCHANGED_COMPANIES = "skipUnchangedCompanies";
+  private static final String COALESCE_WINDOW_MILLIS = "coalesceWindowMillis";
+  private static final String SKIP_REDUNDANT_REGISTRATION = "skipRedundantRegistration";
+  private static final String DISPATCH_ASYNC = "dispatchAsync";
+  private static final String DISPATCH_QUEUE_SIZE = "dispatchQueueSize";
+  private static final String BACKPRESSURE_POLICY = "backpressurePolicy";
+  private static final String DEFER_INITIALIZATION = "deferInitialization";
+  private static final String TRACK_POLICY = "trackPolicy";
+  private static final String SCREENS = "screens";
+  private static final String JOURNAL = "journal";
+  private static final String JOURNAL_MAX_BYTES = "journalMaxBytes";
+  private static final String NORMALIZE_ATTRIBUTES = "normalizeAttributes";
+  private static final String FLATTEN_NESTED_VALUES = "flattenNestedValues";
+  private static final String MAPPING = "mapping";
+  private static final String TRACE_CAPACITY = "traceCapacity";
+  private static final String AGGREGATE_EVENTS = "aggregateEvents";
+  private static final String LIMITS = "limits";
+  private static final String SEND_PUSH_TOKENS = "sendPushTokens";
+  private static final String CIRCUIT_BREAKER = "circuitBreaker";
+  private static final String PROCESSES = "processes";
+
+  private static final int DEFAULT_DISPATCH_QUEUE_SIZE = 1000;
+  private static final int DEFAULT_JOURNAL_MAX_BYTES = 256 * 1024;
+  private static final int MIN_JOURNAL_MAX_BYTES = 4 * 1024;
+
+  private static final String PREFERENCES_NAME = "analytics-android-intercom";
+  private static final String JOURNAL_FILE_NAME = "analytics-android-intercom.journal";
+
+  /** Payloads without a user id are keyed by the empty string, which no user id can equal. */
+  private static final String ANONYMOUS_USER_KEY = "";
 
   // Intercom common specced attributes
   private static final String NAME = "name";
@@ -62,6 +147,7 @@ public class IntercomIntegration extends Integration<Intercom> {
   private static final String PRICE = "price";
   private static final String AMOUNT = "amount";
   private static final String CURRENCY = "currency";
+  private static final String ORIGINAL_EVENT_NAME = "originalEventName";
 
   // Intercom specced user attributes
   private static final String EMAIL = "email";
@@ -76,6 +162,18 @@ public class IntercomIntegration extends Integration<Intercom> {
   // Segment specced properties
   private static final String REVENUE = "revenue";
   private static final String TOTAL = "total";
+  private static final String PRODUCTS = "products";
+
+  // Segment specced context
+  private static final String DEVICE = "device";
+  private static final String DEVICE_TOKEN = "token";
+
+  // Keys hidden from custom attributes and event metadata, indexed by a bit mask of the optional
+  // keys that were sent as standard attributes or moved into the price.
+  private static final String[][] HIDDEN_TRAITS =
+      exclusions(new String[] {"userId", "anonymousId"}, NAME, EMAIL, PHONE, COMPANY);
+  private static final String[][] HIDDEN_PROPERTIES =
+      exclusions(new String[] {PRODUCTS}, REVENUE, TOTAL, CURRENCY);
 
   public interface Provider {
 
@@ -90,219 +188,910 @@ public class IntercomIntegration extends Integration<Intercom> {
         };
   }
 
+  /**
+   * Initializes the Intercom SDK. Benchmarks and tests running without the real SDK can replace it
+   * along with the {@link Provider}.
+   */
+  public interface Initializer {
+
+    void initialize(Application application, String mobileApiKey, String appId);
+
+    Initializer REAL =
+        new Initializer() {
+          @Override
+          public void initialize(Application application, String mobileApiKey, String appId) {
+            Intercom.initialize(application, mobileApiKey, appId);
+          }
+        };
+  }
+
+  /**
+   * Sends FCM tokens to Intercom. Tests running without the real SDK can replace it along with the
+   * {@link Provider}.
+   */
+  public interface PushClient {
+
+    void sendTokenToIntercom(Application application, String token);
+
+    PushClient REAL =
+        new PushClient() {
+          @Override
+          public void sendTokenToIntercom(Application application, String token) {
+            new IntercomPushClient().sendTokenToIntercom(application, token);
+          }
+        };
+  }
+
+  /**
+   * Receives measurements of the integration's work. It is called on whichever thread does the
+   * work, so implementations must be thread-safe and cheap. {@link IntercomMetrics} aggregates the
+   * measurements into lock-free histograms and counters.
+   */
+  public interface MetricsListener {
+
+    /** The integration methods that are measured. */
+    enum Operation {
+      IDENTIFY,
+      TRACK,
+      GROUP,
+      FLUSH,
+      RESET,
+      SCREEN
+    }
+
+    /** The Intercom SDK calls that are measured. */
+    enum SdkCall {
+      REGISTER_IDENTIFIED_USER,
+      REGISTER_UNIDENTIFIED_USER,
+      SET_USER_HASH,
+      UPDATE_USER,
+      LOG_EVENT,
+      LOGOUT,
+      SEND_PUSH_TOKEN
+    }
+
+    /** The Intercom limits that are enforced before sending. */
+    enum Limit {
+      CUSTOM_ATTRIBUTES,
+      STRING_LENGTH,
+      EVENT_METADATA_KEYS,
+      EVENT_NAMES
+    }
+
+    /** Called after a payload was handled, with the time it took including SDK calls. */
+    void onOperation(Operation operation, long durationNanos);
+
+    /** Called after an Intercom SDK call returned, with the time spent inside the SDK. */
+    void onSdkCall(SdkCall call, long durationNanos);
+
+    /** Called when an SDK call was skipped because it was redundant or suppressed by a policy. */
+    void onSkipped(SdkCall call);
+
+    /** Called with the number of nested map and collection values that couldn't be sent. */
+    void onNestedValuesDropped(int count);
+
+    /** Called with the number of values that were truncated or dropped to stay within a limit. */
+    void onLimitExceeded(Limit limit, int count);
+
+    MetricsListener NONE =
+        new MetricsListener() {
+          @Override
+          public void onOperation(Operation operation, long durationNanos) {}
+
+          @Override
+          public void onSdkCall(SdkCall call, long durationNanos) {}
+
+          @Override
+          public void onSkipped(SdkCall call) {}
+
+          @Override
+          public void onNestedValuesDropped(int count) {}
+
+          @Override
+          public void onLimitExceeded(Limit limit, int count) {}
+        };
+  }
+
   public IntercomIntegration(
       Provider provider, Application application, ValueMap settings, Logger logger) {
+    this(provider, Initializer.REAL, application, settings, logger);
+  }
+
+  public IntercomIntegration(
+      Provider provider,
+      Initializer intercomInitializer,
+      Application application,
+      ValueMap settings,
+      Logger logger) {
+    this(provider, intercomInitializer, application, settings, logger, MetricsListener.NONE);
+  }
+
+  public IntercomIntegration(
+      Provider provider,
+      Initializer intercomInitializer,
+      Application application,
+      ValueMap settings,
+      Logger logger,
+      MetricsListener metrics) {
+    this(provider, intercomInitializer, application, settings, logger, metrics, PushClient.REAL);
+  }
+
+  public IntercomIntegration(
+      Provider provider,
+      Initializer intercomInitializer,
+      Application application,
+      ValueMap settings,
+      Logger logger,
+      MetricsListener metrics,
+      PushClient pushClient) {
     String mobileApiKey = settings.getString("mobileApiKey");
     String appId = settings.getString("appId");
 
-    Intercom.initialize(application, mobileApiKey, appId);
-    this.intercom = provider.get();
     this.logger = logger;
+    this.metrics = metrics;
+    this.application = application;
+    this.pushClient = pushClient;
+    this.dispatcher =
+        settings.getBoolean(DISPATCH_ASYNC, false)
+            ? new IntercomDispatcher(
+                Math.max(1, settings.getInt(DISPATCH_QUEUE_SIZE, DEFAULT_DISPATCH_QUEUE_SIZE)),
+                IntercomDispatcher.BackpressurePolicy.from(
+                    settings.getString(BACKPRESSURE_POLICY)),
+                logger)
+            : null;
+    this.initializer =
+        new IntercomInitializer(
+            IntercomInitializer.Mode.from(settings.getString(DEFER_INITIALIZATION)),
+            application,
+            mobileApiKey,
+            appId,
+            intercomInitializer,
+            provider,
+            dispatcher,
+            logger);
+    this.sdk =
+        new IntercomSdk(
+            initializer,
+            metrics,
+            logger,
+            settings.getBoolean(JOURNAL, false)
+                ? openJournal(
+                    application,
+                    Math.max(
+                        MIN_JOURNAL_MAX_BYTES,
+                        settings.getInt(JOURNAL_MAX_BYTES, DEFAULT_JOURNAL_MAX_BYTES)),
+                    logger)
+                : null,
+            settings.getInt(TRACE_CAPACITY, 0) > 0
+                ? new TraceBuffer(settings.getInt(TRACE_CAPACITY, 0))
+                : null,
+            CircuitBreaker.from(settings.getValueMap(CIRCUIT_BREAKER), logger));
+    this.attributeCache =
+        settings.getBoolean(SEND_CHANGED_ATTRIBUTES_ONLY, false)
+            ? new AttributeCache(preferences(application))
+            : null;
+    this.companyCache =
+        settings.getBoolean(SKIP_UNCHANGED_COMPANIES, false) ? new CompanyCache() : null;
+    this.registration =
+        settings.getBoolean(SKIP_REDUNDANT_REGISTRATION, false)
+            ? new RegistrationStateMachine(preferences(application))
+            : null;
+    this.pushTokens =
+        settings.getBoolean(SEND_PUSH_TOKENS, false)
+            ? new PushTokenCache(preferences(application))
+            : null;
+
+    FlushScheduler flushScheduler =
+        new FlushScheduler(
+            new Executor() {
+              @Override
+              public void execute(Runnable flush) {
+                dispatchFlush(flush);
+              }
+            });
+    long coalesceWindowMillis = settings.getLong(COALESCE_WINDOW_MILLIS, 0);
+    if (coalesceWindowMillis > 0) {
+      this.coalescer =
+          new UserUpdateCoalescer(
+              new UserUpdateCoalescer.Sink() {
+                @Override
+                public void updateUser(String userKey, UserUpdate userUpdate) {
+                  sendUserUpdate(userKey, userUpdate);
+                }
+              },
+              coalesceWindowMillis,
+              flushScheduler);
+    } else {
+      this.coalescer = null;
+    }
+    this.aggregator =
+        EventAggregator.from(
+            settings.getValueMap(AGGREGATE_EVENTS),
+            new EventAggregator.Sink() {
+              @Override
+              public void logEvent(String eventName, Map<String, Object> metadata) {
+                sendEvent(eventName, metadata);
+              }
+            },
+            flushScheduler);
+
+    this.trackPolicy = EventPolicy.from(settings.getValueMap(TRACK_POLICY));
+    this.screenPolicy = ScreenPolicy.from(settings.getValueMap(SCREENS));
+    this.normalizer =
+        settings.getBoolean(NORMALIZE_ATTRIBUTES, false) ? new AttributeNormalizer() : null;
+    this.flattener =
+        NestedValueFlattener.from(settings.getValueMap(FLATTEN_NESTED_VALUES), metrics);
+    this.mapping = MappingPlan.compile(settings.getValueMap(MAPPING));
+    ValueMap limitSettings = settings.getValueMap(LIMITS);
+    this.limits =
+        limitSettings != null
+            ? IntercomLimits.from(limitSettings, metrics, logger, preferences(application))
+            : null;
   }
 
   @Override
-  public void identify(IdentifyPayload identify) {
+  public void identify(final IdentifyPayload identify) {
     super.identify(identify);
+    dispatch(
+        new Runnable() {
+          @Override
+          public void run() {
+            performIdentify(identify);
+          }
+        },
+        MetricsListener.Operation.IDENTIFY);
+  }
 
+  private void performIdentify(IdentifyPayload identify) {
     String userId = identify.userId();
-
-    if (isNullOrEmpty(userId)) {
-      intercom.registerUnidentifiedUser();
-      logger.verbose("Intercom.client().registerUnidentifiedUser()");
-    } else {
-      Registration registration = Registration.create().withUserId(userId);
-      intercom.registerIdentifiedUser(registration);
-      logger.verbose("Intercom.client().registerIdentifiedUser(registration)");
+    if (coalescer != null) {
+      // Attributes held back for a previous user must be sent before another user is registered.
+      coalescer.flushUnless(userKey(identify));
+    }
+    if (aggregator != null) {
+      aggregator.flushUnless(userKey(identify));
     }
 
     Map<String, Object> intercomOptions = identify.integrations().getValueMap("Intercom");
-    if (!isNullOrEmpty(intercomOptions)
-        && !isNullOrEmpty(String.valueOf(intercomOptions.get("userHash")))) {
-      intercom.setUserHash(String.valueOf(intercomOptions.get("userHash")));
+    String userHash = userHash(intercomOptions);
+
+    if (registration != null) {
+      registration.identify(sdk, userId, userHash);
+    } else {
+      sdk.register(userId, userHash);
+    }
+    sendPushToken(identify);
+    if (sdk.isShedding()) {
+      sdk.skip(
+          MetricsListener.SdkCall.UPDATE_USER,
+          "Shed Intercom.client().updateUser(), the circuit is open.");
+      return;
     }
 
     Traits traits = identify.traits();
     if (!isNullOrEmpty(traits) && (!isNullOrEmpty(intercomOptions))) {
-      setUserAttributes(traits, intercomOptions);
+      setUserAttributes(userKey(identify), traits, intercomOptions);
       return;
     }
-    setUserAttributes(traits, null);
+    setUserAttributes(userKey(identify), traits, null);
   }
 
   @Override
-  public void track(TrackPayload track) {
+  public void track(final TrackPayload track) {
     super.track(track);
+    if (trackPolicy != null && !trackPolicy.allow(track.event())) {
+      sdk.skipEvent(track.event());
+      return;
+    }
+    dispatch(
+        new Runnable() {
+          @Override
+          public void run() {
+            performTrack(track, track.event(), track.properties());
+          }
+        },
+        MetricsListener.Operation.TRACK);
+  }
 
-    String eventName = track.event();
-    Properties realProperties = track.properties();
+  @Override
+  public void screen(final ScreenPayload screen) {
+    super.screen(screen);
+    if (screenPolicy == null) return;
+    String screenName = screen.event();
+    if (isNullOrEmpty(screenName)) return;
+    final String eventName = screenPolicy.eventName(screenName);
+    if (screenPolicy.isRepeat(screenName) || !screenPolicy.allow(screenName)) {
+      sdk.skipEvent(eventName);
+      return;
+    }
+    dispatch(
+        new Runnable() {
+          @Override
+          public void run() {
+            performTrack(screen, eventName, screen.properties());
+          }
+        },
+        MetricsListener.Operation.SCREEN);
+  }
 
-    if (!isNullOrEmpty(realProperties)) {
-      Properties propertiesCopy = new Properties();
-      propertiesCopy.putAll(realProperties);
-      Map<String, Object> price = new HashMap<>();
-      Object revenueValue = propertiesCopy.get(REVENUE);
-      Object totalValue = propertiesCopy.get(TOTAL);
-      double amountDouble;
-      int amountInCents;
-
-      if ((revenueValue != null) && (revenueValue instanceof Double)) {
-        amountDouble = (double) propertiesCopy.get(REVENUE);
-        amountInCents = (int) amountDouble * 100;
-        price.put(AMOUNT, amountInCents);
-        propertiesCopy.remove(REVENUE);
-      }
-      if ((totalValue != null) && (totalValue instanceof Double) && (revenueValue == null)) {
-        amountDouble = (double) propertiesCopy.get(TOTAL);
-        amountInCents = (int) amountDouble * 100;
-        price.put(AMOUNT, amountInCents);
-        propertiesCopy.remove(TOTAL);
+  private void performTrack(BasePayload payload, String eventName, Properties realProperties) {
+    sendPushToken(payload);
+    if (sdk.isShedding()) {
+      sdk.skipEvent(eventName);
+      return;
+    }
+    if (!isNullOrEmpty(realProperties) && mapping != null) {
+      MappingPlan.Mapped mapped = mapping.mapProperties(realProperties);
+      addNestedValues(mapped);
+      Map<String, Object> price = price(mapped.revenue, mapped.currency);
+      if (price != null) {
+        mapped.custom.put(PRICE, price);
       }
-      if (propertiesCopy.get(CURRENCY) != null) {
-        price.put(CURRENCY, String.valueOf(propertiesCopy.get(CURRENCY)));
-        propertiesCopy.remove(CURRENCY);
+      Map<String, Object> metadata = mapped.custom;
+      logEvent(payload, eventName, normalizer == null ? metadata : normalizer.normalize(metadata));
+      return;
+    }
+
+    if (!isNullOrEmpty(realProperties)) {
+      Object revenueValue = realProperties.get(REVENUE);
+      Object totalValue = realProperties.get(TOTAL);
+      Object currencyValue = realProperties.get(CURRENCY);
+      boolean useRevenue = revenueValue instanceof Double;
+      boolean useTotal = revenueValue == null && totalValue instanceof Double;
+      Map<String, Object> price =
+          price(
+              useRevenue ? (Double) revenueValue : useTotal ? (Double) totalValue : null,
+              currencyValue);
+
+      // Revenue, total and currency are only hidden when they were moved into the price.
+      int hidden = (useRevenue ? 1 : 0) | (useTotal ? 2 : 0) | (currencyValue != null ? 4 : 0);
+      FilteredMap filtered =
+          new FilteredMap(
+              realProperties, price == null ? null : PRICE, price, HIDDEN_PROPERTIES[hidden]);
+      Map<String, Object> metadata = filtered;
+      if (flattener != null) {
+        metadata = flattener.flatten(filtered, realProperties.get(PRODUCTS));
+      } else if (metrics != MetricsListener.NONE) {
+        reportNestedValuesDropped(
+            filtered.nestedCount() + (FilteredMap.isNested(realProperties.get(PRODUCTS)) ? 1 : 0));
       }
-      if (!isNullOrEmpty(price)) {
-        propertiesCopy.put(PRICE, price);
+      logEvent(payload, eventName, normalizer == null ? metadata : normalizer.normalize(metadata));
+      return;
+    }
+    logEvent(payload, eventName, null);
+  }
+
+  private void logEvent(
+      BasePayload payload, String eventName, @Nullable Map<String, Object> metadata) {
+    if (aggregator != null && aggregator.aggregates(eventName)) {
+      aggregator.add(userKey(payload), eventName, metadata);
+      return;
+    }
+    sendEvent(eventName, metadata);
+  }
+
+  private void sendEvent(String eventName, @Nullable Map<String, Object> metadata) {
+    if (limits != null) {
+      String admittedName = limits.admitEventName(eventName);
+      if (admittedName == null) {
+        sdk.skipEvent(eventName);
+        return;
       }
-      for (Map.Entry<String, Object> entry : realProperties.entrySet()) {
-        String key = entry.getKey();
-        Object value = entry.getValue();
-        if (key.equals("products") || value instanceof Map || value instanceof Collection) {
-          propertiesCopy.remove(key);
+      if (!admittedName.equals(eventName)) {
+        // Bucketed under the overflow name; keep the original name first so it survives the limits.
+        Map<String, Object> bucketed = new LinkedHashMap<>();
+        bucketed.put(ORIGINAL_EVENT_NAME, eventName);
+        if (metadata != null) {
+          bucketed.putAll(metadata);
         }
+        eventName = admittedName;
+        metadata = bucketed;
       }
-      intercom.logEvent(eventName, propertiesCopy);
-      logger.verbose("Intercom.client().logEvent(%s, %s)", eventName, propertiesCopy);
+      metadata = limits.enforceMetadata(metadata);
+    }
+    sdk.logEvent(eventName, metadata);
+  }
+
+  /** Returns the Intercom price for {@code amount} and {@code currency}, null if neither is set. */
+  @Nullable
+  private static Map<String, Object> price(@Nullable Double amount, @Nullable Object currency) {
+    if (amount == null && currency == null) return null;
+    Map<String, Object> price = new HashMap<>(4);
+    if (amount != null) {
+      int amountInCents = (int) (double) amount * 100;
+      price.put(AMOUNT, amountInCents);
+    }
+    if (currency != null) {
+      price.put(CURRENCY, String.valueOf(currency));
+    }
+    return price;
+  }
+
+  /** Flattens the nested values of {@code mapped} into it, or reports them as dropped. */
+  private void addNestedValues(MappingPlan.Mapped mapped) {
+    if (flattener != null) {
+      if (mapped.products instanceof Collection) {
+        NestedValueFlattener.summarizeProducts((Collection<?>) mapped.products, mapped.custom);
+      }
+      flattener.flattenInto(mapped.custom, mapped.nested);
       return;
     }
-    intercom.logEvent(eventName);
-    logger.verbose("Intercom.client().logEvent(%s)", eventName);
+    reportNestedValuesDropped(
+        mapped.nested.size() + (FilteredMap.isNested(mapped.products) ? 1 : 0));
   }
 
   @Override
-  public void group(GroupPayload group) {
+  public void group(final GroupPayload group) {
     super.group(group);
+    dispatch(
+        new Runnable() {
+          @Override
+          public void run() {
+            performGroup(group);
+          }
+        },
+        MetricsListener.Operation.GROUP);
+  }
 
+  private void performGroup(GroupPayload group) {
+    sendPushToken(group);
     if (isNullOrEmpty(group.groupId())) return;
+    if (sdk.isShedding()) {
+      sdk.skip(
+          MetricsListener.SdkCall.UPDATE_USER,
+          "Shed Intercom.client().updateUser(), the circuit is open.");
+      return;
+    }
 
-    UserAttributes.Builder userAttributes = new UserAttributes.Builder();
-    Traits traits = new Traits();
-    traits.putAll(group.traits());
-    traits.put("id", group.groupId());
-    Company company = setCompany(traits);
-    userAttributes.withCompany(company);
-    intercom.updateUser(userAttributes.build());
-    logger.verbose("Intercom.client().updateUser(%s)", userAttributes);
+    UserUpdate userUpdate =
+        new UserUpdate.Builder().company(setCompany(group.groupId(), group.traits())).build();
+    updateUser(userKey(group), userUpdate);
+  }
+
+  @Override
+  public void flush() {
+    super.flush();
+    dispatch(
+        new Runnable() {
+          @Override
+          public void run() {
+            performFlush();
+          }
+        },
+        MetricsListener.Operation.FLUSH);
+  }
+
+  /**
+   * Sends everything held back by the coalescer and the event aggregator, waits for it and for any
+   * queued payloads and journaled calls to reach the Intercom SDK, and returns true if that
+   * happened within {@code timeout}. Must not be called from the integration's dispatcher thread.
+   */
+  public boolean flush(long timeout, TimeUnit unit) {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    final CountDownLatch flushed = new CountDownLatch(1);
+    // Never waits for space in the dispatcher's queue, nor is dropped from it.
+    dispatch(
+        new Runnable() {
+          @Override
+          public void run() {
+            performFlush();
+            flushed.countDown();
+          }
+        },
+        MetricsListener.Operation.FLUSH,
+        false);
+    try {
+      return flushed.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)
+          && sdk.awaitDrained(deadline - System.nanoTime());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  private void performFlush() {
+    if (coalescer != null) {
+      coalescer.flush();
+    }
+    if (aggregator != null) {
+      aggregator.flush();
+    }
   }
 
   public void reset() {
     super.reset();
-    intercom.logout();
-    logger.verbose("Intercom.client().reset()");
+    dispatch(
+        new Runnable() {
+          @Override
+          public void run() {
+            performReset();
+          }
+        },
+        MetricsListener.Operation.RESET);
+  }
+
+  private void performReset() {
+    if (coalescer != null) {
+      coalescer.flush();
+    }
+    if (aggregator != null) {
+      aggregator.flush();
+    }
+    if (attributeCache != null) {
+      // The next anonymous user is a new Intercom user with no attributes.
+      attributeCache.forget(ANONYMOUS_USER_KEY);
+    }
+    if (companyCache != null) {
+      companyCache.clear();
+    }
+    if (pushTokens != null) {
+      // Logging out unregisters the device, so the token is sent again with the next user.
+      pushTokens.clear();
+    }
+    if (registration != null) {
+      registration.reset(sdk);
+      return;
+    }
+    sdk.logout();
   }
 
   @Override
   public Intercom getUnderlyingInstance() {
-    return intercom;
+    return initializer.client();
   }
 
-  private void setUserAttributes(Traits realTraits, @Nullable Map<String, Object> intercomOptions) {
-    Traits traitsCopy = new Traits();
-    traitsCopy.putAll(realTraits);
-    traitsCopy.remove("userId");
-    traitsCopy.remove("anonymousId");
+  /** The number of payloads waiting for the background dispatcher, 0 when dispatching inline. */
+  public int getQueueDepth() {
+    return dispatcher == null ? 0 : dispatcher.queueDepth();
+  }
 
-    String name = traitsCopy.name();
-    String email = traitsCopy.email();
-    String phone = traitsCopy.phone();
+  /**
+   * The number of payloads dropped because the background dispatcher's queue, or the buffer of
+   * payloads waiting for Intercom to be initialized, was full.
+   */
+  public long getDroppedCount() {
+    return initializer.droppedCount() + (dispatcher == null ? 0 : dispatcher.droppedCount());
+  }
 
-    UserAttributes.Builder userAttributes = new UserAttributes.Builder();
+  /**
+   * The number of tracks suppressed by the {@code trackPolicy} setting, per event name. Names seen
+   * after the policy stopped memoizing new names are counted under {@code null}.
+   */
+  public Map<String, Long> getSuppressedTrackCounts() {
+    if (trackPolicy == null) return Collections.emptyMap();
+    return trackPolicy.suppressedCounts();
+  }
 
-    if (!isNullOrEmpty(name)) {
-      userAttributes.withName(name);
-      traitsCopy.remove(NAME);
+  /**
+   * The most recent Intercom SDK calls, oldest first, one per line, when the {@code traceCapacity}
+   * setting is enabled. Meant for debug menus and crash reports; empty if tracing is off.
+   */
+  public String dumpTrace() {
+    return sdk.dumpTrace();
+  }
+
+  /**
+   * Runs {@code runnable} on the background dispatcher if enabled, otherwise inline, and reports
+   * how long it took. Unless SDK calls are journaled, it runs once the Intercom client is
+   * available.
+   */
+  private void dispatch(Runnable runnable, MetricsListener.Operation operation) {
+    dispatch(runnable, operation, true);
+  }
+
+  /**
+   * Dispatches a flush of the coalescer or the event aggregator whose window closed. Without a
+   * background dispatcher it is posted to the main thread, where Segment runs the integration.
+   */
+  private void dispatchFlush(final Runnable flush) {
+    Looper mainLooper = Looper.getMainLooper();
+    if (dispatcher != null || mainLooper == null) {
+      dispatch(flush, MetricsListener.Operation.FLUSH, false);
+      return;
     }
-    if (!isNullOrEmpty(email)) {
-      userAttributes.withEmail(email);
-      traitsCopy.remove(EMAIL);
+    new Handler(mainLooper)
+        .post(
+            new Runnable() {
+              @Override
+              public void run() {
+                dispatch(flush, MetricsListener.Operation.FLUSH, false);
+              }
+            });
+  }
+
+  /**
+   * Like {@link #dispatch(Runnable, MetricsListener.Operation)}, but unless {@code droppable}, the
+   * background dispatcher queues {@code runnable} even if its queue is full.
+   */
+  private void dispatch(
+      final Runnable runnable, final MetricsListener.Operation operation, boolean droppable) {
+    final Runnable measured =
+        new Runnable() {
+          @Override
+          public void run() {
+            long start = System.nanoTime();
+            runnable.run();
+            metrics.onOperation(operation, System.nanoTime() - start);
+          }
+        };
+    // Screens are sheddable events too.
+    final boolean track =
+        operation == MetricsListener.Operation.TRACK
+            || operation == MetricsListener.Operation.SCREEN;
+    if (sdk.isJournaling()) {
+      if (dispatcher != null && droppable) {
+        dispatcher.dispatch(measured, track);
+      } else if (dispatcher != null) {
+        dispatcher.dispatchUnbounded(measured);
+      } else {
+        measured.run();
+      }
+    } else if (dispatcher != null) {
+      Runnable afterInitialization =
+          new Runnable() {
+            @Override
+            public void run() {
+              initializer.run(measured, track);
+            }
+          };
+      if (droppable) {
+        dispatcher.dispatch(afterInitialization, track);
+      } else {
+        dispatcher.dispatchUnbounded(afterInitialization);
+      }
+    } else {
+      initializer.run(measured, track);
     }
-    if (!isNullOrEmpty(phone)) {
-      userAttributes.withPhone(phone);
-      traitsCopy.remove(PHONE);
+  }
+
+  private void reportNestedValuesDropped(int count) {
+    if (count > 0) {
+      metrics.onNestedValuesDropped(count);
+    }
+  }
+
+  private static String[][] exclusions(String[] always, String... optional) {
+    String[][] exclusions = new String[1 << optional.length][];
+    for (int mask = 0; mask < exclusions.length; mask++) {
+      List<String> keys = new ArrayList<>(Arrays.asList(always));
+      for (int i = 0; i < optional.length; i++) {
+        if ((mask & (1 << i)) != 0) keys.add(optional[i]);
+      }
+      exclusions[mask] = keys.toArray(new String[keys.size()]);
+    }
+    return exclusions;
+  }
+
+  private static SharedPreferences preferences(Context context) {
+    return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+  }
+
+  @Nullable
+  private static EventJournal openJournal(Context context, int maxBytes, Logger logger) {
+    try {
+      File file = new File(context.getFilesDir(), JOURNAL_FILE_NAME);
+      return EventJournal.open(file, maxBytes, logger);
+    } catch (IOException e) {
+      logger.error(e, "Unable to open the Intercom journal, continuing without it.");
+      return null;
+    }
+  }
+
+  @Nullable
+  private static String userHash(@Nullable Map<String, Object> intercomOptions) {
+    if (isNullOrEmpty(intercomOptions)) return null;
+    Object userHash = intercomOptions.get("userHash");
+    if (userHash == null || isNullOrEmpty(String.valueOf(userHash))) return null;
+    return String.valueOf(userHash);
+  }
+
+  /**
+   * Sends the FCM token the app put into the payload's device context with {@code
+   * analytics.getAnalyticsContext().device().putDeviceToken(token)}, unless it was already sent
+   * for this user.
+   */
+  private void sendPushToken(BasePayload payload) {
+    if (pushTokens == null) return;
+    ValueMap device = payload.context().getValueMap(DEVICE);
+    String token = device == null ? null : device.getString(DEVICE_TOKEN);
+    if (!isNullOrEmpty(token) && pushTokens.markSent(userKey(payload), token)) {
+      sdk.sendPushToken(pushClient, application, token);
+    }
+  }
+
+  /** The key under which attributes sent for the payload's user are cached. */
+  private static String userKey(BasePayload payload) {
+    String userId = payload.userId();
+    return isNullOrEmpty(userId) ? ANONYMOUS_USER_KEY : userId;
+  }
+
+  private void setUserAttributes(
+      String userKey, Traits traits, @Nullable Map<String, Object> intercomOptions) {
+    UserUpdate.Builder userUpdate = new UserUpdate.Builder();
+    Object company;
+    if (mapping != null) {
+      MappingPlan.Mapped mapped = mapping.mapTraits(traits);
+      for (Map.Entry<String, Object> entry : mapped.standard.entrySet()) {
+        userUpdate.putStandard(entry.getKey(), entry.getValue());
+      }
+      addNestedValues(mapped);
+      userUpdate.custom(normalizer == null ? mapped.custom : normalizer.normalize(mapped.custom));
+      company = mapped.company;
+    } else {
+      company = setStandardAndCustomAttributes(traits, userUpdate);
     }
 
     if (!isNullOrEmpty(intercomOptions)) {
       Object optionsUnsubscribedFromEmails = intercomOptions.get(UNSUBSCRIBED_FROM_EMAILS);
       Object optionsCreatedAt = intercomOptions.get(CREATED_AT);
-      String languageOverride = String.valueOf(intercomOptions.get(LANGUAGE_OVERRIDE));
+      Object optionsLanguageOverride = intercomOptions.get(LANGUAGE_OVERRIDE);
 
-      if (!isNullOrEmpty(languageOverride)) {
-        userAttributes.withLanguageOverride(languageOverride);
+      if (optionsLanguageOverride != null
+          && !isNullOrEmpty(String.valueOf(optionsLanguageOverride))) {
+        userUpdate.putStandard(
+            UserUpdate.LANGUAGE_OVERRIDE, String.valueOf(optionsLanguageOverride));
       }
       if (optionsCreatedAt != null && optionsCreatedAt instanceof Long) {
-        long createdAt = (long) intercomOptions.get(CREATED_AT);
-        userAttributes.withSignedUpAt(createdAt);
+        userUpdate.putStandard(UserUpdate.SIGNED_UP_AT, optionsCreatedAt);
       }
       if (optionsUnsubscribedFromEmails != null
           && optionsUnsubscribedFromEmails instanceof Boolean) {
-        boolean unsubscribedFromEmails = (boolean) intercomOptions.get(UNSUBSCRIBED_FROM_EMAILS);
-        userAttributes.withUnsubscribedFromEmails(unsubscribedFromEmails);
+        userUpdate.putStandard(
+            UserUpdate.UNSUBSCRIBED_FROM_EMAILS, optionsUnsubscribedFromEmails);
       }
     }
 
-    if (traitsCopy.containsKey(COMPANY) && traitsCopy.get(COMPANY) instanceof Map) {
-      Map<String, Object> companyObj = (HashMap<String, Object>) traitsCopy.get(COMPANY);
-      Company company = setCompany(companyObj);
-      userAttributes.withCompany(company);
-      traitsCopy.remove(COMPANY);
+    if (company instanceof Map) {
+      userUpdate.company(setCompany(null, (Map<String, Object>) company));
     }
 
-    for (Map.Entry<String, Object> entry : traitsCopy.entrySet()) {
-      String trait = entry.getKey();
-      Object value = entry.getValue();
-      if (!(value instanceof Map || value instanceof Collection)) {
-        userAttributes.withCustomAttribute(trait, value);
-      }
+    updateUser(userKey, userUpdate.build());
+  }
+
+  /**
+   * Reads the standard attributes out of {@code traits} and sends everything else as custom
+   * attributes, read straight out of the traits. Returns the company trait.
+   */
+  @Nullable
+  private Object setStandardAndCustomAttributes(Traits traits, UserUpdate.Builder userUpdate) {
+    String name = traits.name();
+    String email = traits.email();
+    String phone = traits.phone();
+
+    if (!isNullOrEmpty(name)) {
+      userUpdate.putStandard(UserUpdate.NAME, name);
+    }
+    if (!isNullOrEmpty(email)) {
+      userUpdate.putStandard(UserUpdate.EMAIL, email);
+    }
+    if (!isNullOrEmpty(phone)) {
+      userUpdate.putStandard(UserUpdate.PHONE, phone);
     }
 
-    intercom.updateUser(userAttributes.build());
-    logger.verbose("Intercom.client().updateUser(userAttributes)");
+    Object company = traits.get(COMPANY);
+    int hidden =
+        (isNullOrEmpty(name) ? 0 : 1)
+            | (isNullOrEmpty(email) ? 0 : 2)
+            | (isNullOrEmpty(phone) ? 0 : 4)
+            | (company instanceof Map ? 8 : 0);
+    FilteredMap filtered = new FilteredMap(traits, HIDDEN_TRAITS[hidden]);
+    Map<String, Object> custom = filtered;
+    if (flattener != null) {
+      custom = flattener.flatten(filtered, null);
+    } else if (metrics != MetricsListener.NONE) {
+      reportNestedValuesDropped(filtered.nestedCount());
+    }
+    userUpdate.custom(normalizer == null ? custom : normalizer.normalize(custom));
+    return company;
   }
 
-  private Company setCompany(Map<String, Object> payload) {
-    Company.Builder company = new Company.Builder();
-    if (!payload.containsKey("id")) return company.build();
-    company.withCompanyId(String.valueOf(payload.get("id")));
-    payload.remove("id");
+  private void updateUser(String userKey, UserUpdate userUpdate) {
+    if (coalescer != null) {
+      coalescer.add(userKey, userUpdate);
+      return;
+    }
+    sendUserUpdate(userKey, userUpdate);
+  }
 
-    if (payload.containsKey(NAME)) {
-      String name = String.valueOf(payload.get(NAME));
-      company.withName(name);
-      payload.remove(NAME);
+  private void sendUserUpdate(String userKey, UserUpdate userUpdate) {
+    if (limits != null) {
+      userUpdate = limits.enforce(userUpdate);
+    }
+    if (companyCache != null) {
+      userUpdate = companyCache.diff(userKey, userUpdate);
+    }
+    if (attributeCache != null) {
+      userUpdate = attributeCache.diff(userKey, userUpdate);
+    }
+    if ((companyCache != null || attributeCache != null) && userUpdate.isEmpty()) {
+      sdk.skip(
+          MetricsListener.SdkCall.UPDATE_USER,
+          "Skipping Intercom.client().updateUser(), no attributes changed.");
+      return;
     }
-    if (payload.containsKey(CREATED_AT)) {
-      long createdAt = (long) payload.get(CREATED_AT);
-      company.withCreatedAt(createdAt);
-      payload.remove(CREATED_AT);
+    if (!sdk.updateUser(userUpdate)) {
+      // Shed, so the caches must not assume the attributes were sent.
+      return;
+    }
+    if (attributeCache != null) {
+      attributeCache.commit(userKey, userUpdate);
     }
-    if (payload.containsKey(MONTHLY_SPEND)) {
-      int monthlySpend = (int) payload.get(MONTHLY_SPEND);
-      company.withMonthlySpend(monthlySpend);
-      payload.remove(MONTHLY_SPEND);
+    if (companyCache != null) {
+      companyCache.commit(userKey, userUpdate);
     }
-    if (payload.containsKey(PLAN)) {
-      String plan = String.valueOf(payload.get(PLAN));
-      company.withPlan(plan);
-      payload.remove(PLAN);
+  }
+
+  /**
+   * Reads the Intercom company fields out of {@code traits} in a single pass, without modifying
+   * it. The company id is {@code id} if given, otherwise the {@code id} trait.
+   */
+  private Map<String, Object> setCompany(
+      @Nullable String id, @Nullable Map<String, Object> traits) {
+    Map<String, Object> company = new LinkedHashMap<>();
+    if (id == null && traits != null && traits.containsKey("id")) {
+      id = String.valueOf(traits.get("id"));
     }
+    if (id == null) return company;
+    company.put(UserUpdate.COMPANY_ID, id);
+    if (traits == null) return company;
 
-    for (Map.Entry<String, Object> entry : payload.entrySet()) {
+    List<Map.Entry<String, Object>> nested = null;
+    for (Map.Entry<String, Object> entry : traits.entrySet()) {
       String trait = entry.getKey();
       Object value = entry.getValue();
-      if (!(value instanceof Map || value instanceof Collection)) {
-        company.withCustomAttribute(trait, value);
+      switch (trait) {
+        case "id":
+          break;
+        case NAME:
+          company.put(UserUpdate.NAME, String.valueOf(value));
+          break;
+        case CREATED_AT:
+          if (normalizer != null) {
+            value = AttributeNormalizer.value(value);
+            if (value instanceof Number) value = ((Number) value).longValue();
+          }
+          company.put(UserUpdate.CREATED_AT, (long) value);
+          break;
+        case MONTHLY_SPEND:
+          if (normalizer != null) {
+            value = AttributeNormalizer.value(value);
+            if (value instanceof Number) value = ((Number) value).intValue();
+          }
+          company.put(UserUpdate.MONTHLY_SPEND, (int) value);
+          break;
+        case PLAN:
+          company.put(UserUpdate.PLAN, String.valueOf(value));
+          break;
+        default:
+          if (FilteredMap.isNested(value)) {
+            if (nested == null) nested = new ArrayList<>();
+            nested.add(entry);
+          } else {
+            putCustomCompanyAttribute(company, trait, value);
+          }
+          break;
       }
     }
-    return company.build();
+    if (nested != null) {
+      if (flattener != null) {
+        Map<String, Object> flattened = new LinkedHashMap<>();
+        flattener.flattenInto(flattened, nested);
+        for (Map.Entry<String, Object> entry : flattened.entrySet()) {
+          putCustomCompanyAttribute(company, entry.getKey(), entry.getValue());
+        }
+      } else {
+        reportNestedValuesDropped(nested.size());
+      }
+    }
+    return company;
+  }
+
+  private void putCustomCompanyAttribute(
+      Map<String, Object> company, String key, Object value) {
+    if (normalizer != null) {
+      key = normalizer.key(key);
+      value = AttributeNormalizer.value(value);
+    }
+    if (key != null) company.put(key, value);
   }
 }
@@ -0,0 +1,281 @@
+package com.segment.analytics.android.integrations.intercom;
+
+import android.content.SharedPreferences;
+import androidx.annotation.Nullable;
+
+import com.segment.analytics.ValueMap;
+import com.segment.analytics.android.integrations.intercom.IntercomIntegration.MetricsListener;
+import com.segment.analytics.android.integrations.intercom.IntercomIntegration.MetricsListener.Limit;
+import com.segment.analytics.integrations.Logger;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Enforces Intercom's limits before anything is sent, instead of paying for uploads the server
+ * rejects or truncates. Strings longer than the limit are truncated, event metadata past the key
+ * limit is dropped, and custom attributes and event names are admitted until as many distinct names
+ * as the budget allows were sent; values under new attribute names are dropped after that. Events
+ * under new names are dropped too, unless {@code overflowEventName} is set, in which case they are
+ * sent under that name instead. Every violation is reported to the {@link MetricsListener}.
+ *
+ * <p>Identifiers are never truncated, since a truncated email or company id would update a
+ * different Intercom record. An email over the limit is dropped instead, and so is a company whose
+ * id is, and either is logged as an error.
+ *
+ * <pre>
+ * {
+ *   "maxCustomAttributes": 250,
+ *   "maxStringLength": 255,
+ *   "maxEventMetadataKeys": 20,
+ *   "maxEventNames": 120,
+ *   "overflowEventName": "Other Event"
+ * }
+ * </pre>
+ *
+ * <p>Budgets that aren't set default to the limits of an Intercom workspace. Attribute names are
+ * only remembered for the lifetime of the integration, while event names are persisted by an {@link
+ * EventNameGuard}, since a workspace never forgets an event name either.
+ */
+final class IntercomLimits {
+
+  private static final String MAX_CUSTOM_ATTRIBUTES = "maxCustomAttributes";
+  private static final String MAX_STRING_LENGTH = "maxStringLength";
+  private static final String MAX_EVENT_METADATA_KEYS = "maxEventMetadataKeys";
+  private static final String MAX_EVENT_NAMES = "maxEventNames";
+  private static final String OVERFLOW_EVENT_NAME = "overflowEventName";
+
+  private static final int DEFAULT_MAX_CUSTOM_ATTRIBUTES = 250;
+  private static final int DEFAULT_MAX_STRING_LENGTH = 255;
+  private static final int DEFAULT_MAX_EVENT_METADATA_KEYS = 20;
+  private static final int DEFAULT_MAX_EVENT_NAMES = 120;
+
+  private final MetricsListener metrics;
+  private final Logger logger;
+  private final int maxCustomAttributes;
+  private final int maxStringLength;
+  private final int maxEventMetadataKeys;
+  private final EventNameGuard eventNames;
+
+  // Immutable sets, replaced whenever a name is admitted. Never larger than their budget.
+  private final AtomicReference<Set<String>> attributeNames = names();
+  private final AtomicReference<Set<String>> companyAttributeNames = names();
+
+  /** Returns the limits described by {@code settings}, or {@code null} if they aren't enforced. */
+  @Nullable
+  static IntercomLimits from(
+      @Nullable ValueMap settings,
+      MetricsListener metrics,
+      Logger logger,
+      SharedPreferences preferences) {
+    if (settings == null) return null;
+    String overflowEventName = settings.getString(OVERFLOW_EVENT_NAME);
+    return new IntercomLimits(
+        metrics,
+        logger,
+        budget(settings, MAX_CUSTOM_ATTRIBUTES, DEFAULT_MAX_CUSTOM_ATTRIBUTES),
+        budget(settings, MAX_STRING_LENGTH, DEFAULT_MAX_STRING_LENGTH),
+        budget(settings, MAX_EVENT_METADATA_KEYS, DEFAULT_MAX_EVENT_METADATA_KEYS),
+        new EventNameGuard(
+            preferences,
+            budget(settings, MAX_EVENT_NAMES, DEFAULT_MAX_EVENT_NAMES),
+            overflowEventName == null || overflowEventName.isEmpty() ? null : overflowEventName));
+  }
+
+  private static int budget(ValueMap settings, String key, int defaultValue) {
+    int budget = settings.getInt(key, defaultValue);
+    return budget > 0 ? budget : defaultValue;
+  }
+
+  IntercomLimits(
+      MetricsListener metrics,
+      Logger logger,
+      int maxCustomAttributes,
+      int maxStringLength,
+      int maxEventMetadataKeys,
+      EventNameGuard eventNames) {
+    this.metrics = metrics;
+    this.logger = logger;
+    this.maxCustomAttributes = maxCustomAttributes;
+    this.maxStringLength = maxStringLength;
+    this.maxEventMetadataKeys = maxEventMetadataKeys;
+    this.eventNames = eventNames;
+  }
+
+  /**
+   * Returns {@code update} with over-long strings truncated, over-long identifiers and custom
+   * attributes over the budget dropped, or {@code update} itself if it is within the limits.
+   */
+  UserUpdate enforce(UserUpdate update) {
+    Map<String, Object> standard = update.standard;
+    if (isTooLong(standard.get(UserUpdate.EMAIL))) {
+      logger.error(
+          null,
+          "Dropped an email longer than %s characters, it can't be truncated.",
+          maxStringLength);
+      metrics.onLimitExceeded(Limit.STRING_LENGTH, 1);
+      standard = new LinkedHashMap<>(standard);
+      standard.remove(UserUpdate.EMAIL);
+    }
+    standard = truncateValues(standard, null);
+    Map<String, Object> custom = truncateValues(update.custom, attributeNames);
+    Map<String, Object> company = update.company;
+    if (company != null && isTooLong(company.get(UserUpdate.COMPANY_ID))) {
+      logger.error(
+          null,
+          "Dropped a company whose id is longer than %s characters, it can't be truncated.",
+          maxStringLength);
+      metrics.onLimitExceeded(Limit.STRING_LENGTH, 1);
+      company = null;
+    }
+    if (company != null) {
+      company = truncateValues(company, companyAttributeNames);
+    }
+    if (standard == update.standard && custom == update.custom && company == update.company) {
+      return update;
+    }
+    return new UserUpdate(standard, custom, company);
+  }
+
+  /**
+   * Returns the name to send an event named {@code eventName} as without exceeding the event name
+   * budget, or {@code null} if it must be dropped.
+   */
+  @Nullable
+  String admitEventName(String eventName) {
+    String admitted = eventNames.admit(eventName);
+    if (!eventName.equals(admitted)) {
+      metrics.onLimitExceeded(Limit.EVENT_NAMES, 1);
+    }
+    return admitted;
+  }
+
+  /**
+   * Returns {@code metadata} with over-long strings truncated and keys past the budget dropped, or
+   * {@code metadata} itself if it is within the limits.
+   */
+  @Nullable
+  Map<String, Object> enforceMetadata(@Nullable Map<String, Object> metadata) {
+    if (metadata == null) return null;
+    boolean withinLimits = true;
+    int keys = 0;
+    for (Map.Entry<String, Object> entry : metadata.entrySet()) {
+      if (++keys > maxEventMetadataKeys || isTooLong(entry.getValue())) {
+        withinLimits = false;
+        break;
+      }
+    }
+    if (withinLimits) return metadata;
+
+    Map<String, Object> enforced = new LinkedHashMap<>(maxEventMetadataKeys * 2);
+    int dropped = 0;
+    int truncated = 0;
+    for (Map.Entry<String, Object> entry : metadata.entrySet()) {
+      if (enforced.size() == maxEventMetadataKeys) {
+        dropped++;
+        continue;
+      }
+      Object value = entry.getValue();
+      if (isTooLong(value)) {
+        value = truncate((String) value);
+        truncated++;
+      }
+      enforced.put(entry.getKey(), value);
+    }
+    report(Limit.EVENT_METADATA_KEYS, dropped);
+    report(Limit.STRING_LENGTH, truncated);
+    return enforced;
+  }
+
+  /**
+   * Returns {@code values} with strings truncated and, if {@code names} tracks their budget, values
+   * under names past the budget dropped. Standard Intercom fields never count towards the budget.
+   */
+  private Map<String, Object> truncateValues(
+      Map<String, Object> values, @Nullable AtomicReference<Set<String>> names) {
+    Map<String, Object> enforced = null;
+    int dropped = 0;
+    int truncated = 0;
+    for (Map.Entry<String, Object> entry : values.entrySet()) {
+      String key = entry.getKey();
+      Object value = entry.getValue();
+      boolean drop =
+          names != null
+              && !(names == companyAttributeNames && isCompanyField(key))
+              && !admit(names, key, maxCustomAttributes);
+      boolean truncate = !drop && isTooLong(value);
+      if ((drop || truncate) && enforced == null) {
+        // Copy whatever came before the first violation.
+        enforced = new LinkedHashMap<>(values.size() * 2);
+        for (Map.Entry<String, Object> previous : values.entrySet()) {
+          if (previous.getKey().equals(key)) break;
+          enforced.put(previous.getKey(), previous.getValue());
+        }
+      }
+      if (drop) {
+        dropped++;
+      } else if (truncate) {
+        truncated++;
+        enforced.put(key, truncate((String) value));
+      } else if (enforced != null) {
+        enforced.put(key, value);
+      }
+    }
+    report(Limit.CUSTOM_ATTRIBUTES, dropped);
+    report(Limit.STRING_LENGTH, truncated);
+    return enforced == null ? values : enforced;
+  }
+
+  private static boolean isCompanyField(String key) {
+    switch (key) {
+      case UserUpdate.COMPANY_ID:
+      case UserUpdate.NAME:
+      case UserUpdate.CREATED_AT:
+      case UserUpdate.MONTHLY_SPEND:
+      case UserUpdate.PLAN:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private static AtomicReference<Set<String>> names() {
+    return new AtomicReference<>(Collections.<String>emptySet());
+  }
+
+  /**
+   * Returns true if {@code name} is known or could be added without exceeding {@code budget}.
+   * Known names are looked up without locking; admitting a new one copies the set.
+   */
+  private static boolean admit(AtomicReference<Set<String>> names, String name, int budget) {
+    while (true) {
+      Set<String> current = names.get();
+      if (current.contains(name)) return true;
+      if (current.size() >= budget) return false;
+      Set<String> next = new HashSet<>(current);
+      next.add(name);
+      if (names.compareAndSet(current, Collections.unmodifiableSet(next))) return true;
+    }
+  }
+
+  private boolean isTooLong(@Nullable Object value) {
+    return value instanceof String && ((String) value).length() > maxStringLength;
+  }
+
+  /** Truncates {@code value} to the string limit, without splitting a surrogate pair. */
+  private String truncate(String value) {
+    int end = maxStringLength;
+    if (Character.isHighSurrogate(value.charAt(end - 1))) end--;
+    return value.substring(0, end);
+  }
+
+  private void report(Limit limit, int count) {
+    if (count > 0) {
+      metrics.onLimitExceeded(limit, count);
+    }
+  }
+}
@@ -0,0 +1,214 @@
+package com.segment.analytics.android.integrations.intercom;
+
+import com.segment.analytics.android.integrations.intercom.IntercomIntegration.MetricsListener;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link MetricsListener} that aggregates measurements into latency histograms per operation and
+ * per SDK call, and counters for skipped calls, dropped nested values and exceeded limits.
+ *
+ * <p>Recording is a handful of atomic increments with no locks and no allocation, so it can stay
+ * enabled in production builds. Read the numbers with {@link #latency}, {@link #sdkLatency}, {@link
+ * #skipped}, {@link #nestedValuesDropped} and {@link #limitExceeded}, e.g. periodically or when
+ * reporting a session.
+ *
+ * <pre>{@code
+ * IntercomMetrics metrics = new IntercomMetrics();
+ * Analytics analytics = new Analytics.Builder(context, "write_key")
+ *     .use(IntercomIntegration.factory(metrics))
+ *     .build();
+ * }</pre>
+ */
+public final class IntercomMetrics implements MetricsListener {
+
+  private final Recorder[] operations = recorders(Operation.values().length);
+  private final Recorder[] sdkCalls = recorders(SdkCall.values().length);
+  private final AtomicLongArray skipped = new AtomicLongArray(SdkCall.values().length);
+  private final AtomicLong nestedValuesDropped = new AtomicLong();
+  private final AtomicLongArray limitsExceeded = new AtomicLongArray(Limit.values().length);
+
+  @Override
+  public void onOperation(Operation operation, long durationNanos) {
+    operations[operation.ordinal()].record(durationNanos);
+  }
+
+  @Override
+  public void onSdkCall(SdkCall call, long durationNanos) {
+    sdkCalls[call.ordinal()].record(durationNanos);
+  }
+
+  @Override
+  public void onSkipped(SdkCall call) {
+    skipped.incrementAndGet(call.ordinal());
+  }
+
+  @Override
+  public void onNestedValuesDropped(int count) {
+    nestedValuesDropped.addAndGet(count);
+  }
+
+  @Override
+  public void onLimitExceeded(Limit limit, int count) {
+    limitsExceeded.addAndGet(limit.ordinal(), count);
+  }
+
+  /**
+   * Returns the time the integration spent handling payloads of {@code operation}, including the
+   * SDK calls. Its {@link Histogram#count() count} is the number of payloads handled.
+   */
+  public Histogram latency(Operation operation) {
+    return operations[operation.ordinal()].snapshot();
+  }
+
+  /** Returns the time spent inside the Intercom SDK for {@code call}. */
+  public Histogram sdkLatency(SdkCall call) {
+    return sdkCalls[call.ordinal()].snapshot();
+  }
+
+  /** Returns how often {@code call} was skipped because it was redundant or suppressed. */
+  public long skipped(SdkCall call) {
+    return skipped.get(call.ordinal());
+  }
+
+  /** Returns the number of nested map and collection values left out of attributes and events. */
+  public long nestedValuesDropped() {
+    return nestedValuesDropped.get();
+  }
+
+  /** Returns the number of values that were truncated or dropped to stay within {@code limit}. */
+  public long limitExceeded(Limit limit) {
+    return limitsExceeded.get(limit.ordinal());
+  }
+
+  /**
+   * An immutable snapshot of a latency histogram. Values are bucketed with four buckets per power
+   * of two, so percentiles are accurate to within 25%.
+   */
+  public static final class Histogram {
+    private final long[] buckets;
+    private final long count;
+    private final long totalNanos;
+    private final long maxNanos;
+
+    Histogram(long[] buckets, long count, long totalNanos, long maxNanos) {
+      this.buckets = buckets;
+      this.count = count;
+      this.totalNanos = totalNanos;
+      this.maxNanos = maxNanos;
+    }
+
+    /** The number of recorded values. */
+    public long count() {
+      return count;
+    }
+
+    /** The sum of all recorded values, in nanoseconds. */
+    public long totalNanos() {
+      return totalNanos;
+    }
+
+    /** The largest recorded value, in nanoseconds. */
+    public long maxNanos() {
+      return maxNanos;
+    }
+
+    /** The mean of the recorded values, in nanoseconds, or 0 if there are none. */
+    public long meanNanos() {
+      return count == 0 ? 0 : totalNanos / count;
+    }
+
+    /**
+     * Returns an upper bound for the {@code percentile} (between 0 and 100) of the recorded values,
+     * in nanoseconds, or 0 if there are none.
+     */
+    public long percentileNanos(double percentile) {
+      long total = 0;
+      for (long bucket : buckets) {
+        total += bucket;
+      }
+      if (total == 0) return 0;
+      long rank = (long) Math.ceil(total * Math.min(Math.max(percentile, 0), 100) / 100);
+      long seen = 0;
+      for (int i = 0; i < buckets.length; i++) {
+        seen += buckets[i];
+        if (seen >= Math.max(rank, 1)) return Math.min(upperBound(i), maxNanos);
+      }
+      return maxNanos;
+    }
+
+    @Override
+    public String toString() {
+      return "Histogram{count="
+          + count
+          + ", mean="
+          + meanNanos()
+          + "ns, p50="
+          + percentileNanos(50)
+          + "ns, p99="
+          + percentileNanos(99)
+          + "ns, max="
+          + maxNanos
+          + "ns}";
+    }
+  }
+
+  // Values below 4 get a bucket each; above that every power of two is split into four buckets.
+  private static final int SUB_BUCKET_BITS = 2;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  static int bucket(long value) {
+    if (value < SUB_BUCKETS) return (int) Math.max(value, 0);
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  static long upperBound(int bucket) {
+    if (bucket < SUB_BUCKETS) return bucket;
+    int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    long sub = bucket % SUB_BUCKETS;
+    long width = 1L << (exponent - SUB_BUCKET_BITS);
+    return ((SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS)) + width - 1;
+  }
+
+  /** Records values into a histogram with atomic increments only. */
+  private static final class Recorder {
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    void record(long nanos) {
+      buckets.incrementAndGet(bucket(nanos));
+      count.incrementAndGet();
+      totalNanos.addAndGet(nanos);
+      long max = maxNanos.get();
+      while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+        max = maxNanos.get();
+      }
+    }
+
+    /**
+     * Copies the histogram. Values recorded concurrently may be reflected in some fields and not in
+     * others.
+     */
+    Histogram snapshot() {
+      long[] copy = new long[BUCKETS];
+      for (int i = 0; i < BUCKETS; i++) {
+        copy[i] = buckets.get(i);
+      }
+      return new Histogram(copy, count.get(), totalNanos.get(), maxNanos.get());
+    }
+  }
+
+  private static Recorder[] recorders(int count) {
+    Recorder[] recorders = new Recorder[count];
+    for (int i = 0; i < count; i++) {
+      recorders[i] = new Recorder();
+    }
+    return recorders;
+  }
+}
@@ -0,0 +1,526 @@
+package com.segment.analytics.android.integrations.intercom;
+
+import android.app.Application;
+import androidx.annotation.Nullable;
+
+import com.segment.analytics.android.integrations.intercom.IntercomIntegration.MetricsListener;
+import com.segment.analytics.android.integrations.intercom.IntercomIntegration.MetricsListener.SdkCall;
+import com.segment.analytics.integrations.Logger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.intercom.android.sdk.identity.Registration;
+
+import static com.segment.analytics.internal.Utils.isNullOrEmpty;
+
+/**
+ * Makes the integration's calls into the Intercom SDK. The client is resolved through the {@link
+ * IntercomInitializer}, and the time spent in every call, as well as every call that was skipped,
+ * is reported to the {@link MetricsListener}.
+ *
+ * <p>With an {@link EventJournal}, calls are journaled first and made once the client is
+ * initialized, in order, and acknowledged once they returned; calls recovered from the journal on
+ * startup are made before any new ones. Events and user updates made while no user is registered,
+ * i.e. between a {@code logout} and the next registration, are held back until that registration,
+ * since Intercom would drop them. Calls are made by one draining thread at a time, without holding
+ * the lock the journal is appended under, so a slow call never blocks the threads queueing new
+ * ones. A call that throws is made again before any other, up to {@link #MAX_ATTEMPTS} times, after
+ * which it is dropped and acknowledged so it can't hold back the journal for good.
+ *
+ * <p>With a {@link TraceBuffer}, calls are recorded into it instead of being logged, so that
+ * nothing is formatted unless the trace is dumped.
+ *
+ * <p>With a {@link CircuitBreaker}, it guards user updates and events: their outcome is recorded,
+ * one that throws is dropped instead of throwing into the caller, and while the circuit is open
+ * they are shed, or, when journaling, left in the journal until the circuit closes. Registrations,
+ * user hashes and logouts are neither guarded nor shed, since skipping them would mix up users.
+ */
+final class IntercomSdk {
+
+  /** Times a journaled call may throw in a row before it is dropped. */
+  static final int MAX_ATTEMPTS = 3;
+
+  private final IntercomInitializer initializer;
+  private final MetricsListener metrics;
+  private final Logger logger;
+  @Nullable private final EventJournal journal;
+  @Nullable private final TraceBuffer trace;
+  @Nullable private final CircuitBreaker breaker;
+
+  // Guarded by this when journaling. The lock is only held to queue and take calls, never while
+  // making them.
+  private final ArrayDeque<EventJournal.Entry> queue = new ArrayDeque<>();
+  private final List<EventJournal.Entry> held = new ArrayList<>();
+  private boolean loggedOut;
+  private boolean drainScheduled;
+  /** The call being made by the one thread that drains, or null. */
+  @Nullable private EventJournal.Entry inFlight;
+  private boolean draining;
+  /** Times the call at the head of the queue threw in a row. */
+  private int attempts;
+
+  private final Runnable drain =
+      new Runnable() {
+        @Override
+        public void run() {
+          synchronized (IntercomSdk.this) {
+            drainScheduled = false;
+          }
+          drain();
+        }
+      };
+
+  IntercomSdk(
+      IntercomInitializer initializer,
+      MetricsListener metrics,
+      Logger logger,
+      @Nullable EventJournal journal,
+      @Nullable TraceBuffer trace,
+      @Nullable CircuitBreaker breaker) {
+    this.initializer = initializer;
+    this.metrics = metrics;
+    this.logger = logger;
+    this.journal = journal;
+    this.trace = trace;
+    this.breaker = breaker;
+    if (journal != null) {
+      List<EventJournal.Entry> recovered = journal.takeRecovered();
+      if (!recovered.isEmpty()) {
+        synchronized (this) {
+          queue.addAll(recovered);
+          drainScheduled = true;
+        }
+        initializer.run(drain);
+      }
+    }
+  }
+
+  /**
+   * Registers the user, or an unidentified user without {@code userId}. The hash is set first, as
+   * Intercom documents, so the registration is verified; every path registers through here so the
+   * calls are made in this order whatever the integration's settings.
+   */
+  void register(@Nullable String userId, @Nullable String userHash) {
+    if (userHash != null) {
+      setUserHash(userHash);
+    }
+    if (isNullOrEmpty(userId)) {
+      registerUnidentifiedUser();
+    } else {
+      registerIdentifiedUser(userId);
+    }
+  }
+
+  void registerUnidentifiedUser() {
+    if (journal != null) {
+      submit(new EventJournal.Entry(SdkCall.REGISTER_UNIDENTIFIED_USER, null, null, null));
+      return;
+    }
+    sendRegisterUnidentifiedUser();
+  }
+
+  void registerIdentifiedUser(String userId) {
+    if (journal != null) {
+      submit(new EventJournal.Entry(SdkCall.REGISTER_IDENTIFIED_USER, userId, null, null));
+      return;
+    }
+    sendRegisterIdentifiedUser(userId);
+  }
+
+  void setUserHash(String userHash) {
+    if (journal != null) {
+      submit(new EventJournal.Entry(SdkCall.SET_USER_HASH, userHash, null, null));
+      return;
+    }
+    sendSetUserHash(userHash);
+  }
+
+  /** Returns false if the update was shed because the circuit is open. */
+  boolean updateUser(UserUpdate userUpdate) {
+    if (journal != null) {
+      submit(new EventJournal.Entry(SdkCall.UPDATE_USER, null, null, userUpdate));
+      return true;
+    }
+    if (breaker != null && !breaker.allowCall()) {
+      skip(SdkCall.UPDATE_USER, "Shed Intercom.client().updateUser(), the circuit is open.");
+      return false;
+    }
+    return sendUpdateUser(userUpdate);
+  }
+
+  void logEvent(String eventName, @Nullable Map<String, Object> metadata) {
+    if (journal != null) {
+      submit(new EventJournal.Entry(SdkCall.LOG_EVENT, eventName, metadata, null));
+      return;
+    }
+    if (breaker != null && !breaker.allowCall()) {
+      skipEvent(eventName);
+      return;
+    }
+    sendLogEvent(eventName, metadata);
+  }
+
+  void logout() {
+    if (journal != null) {
+      submit(new EventJournal.Entry(SdkCall.LOGOUT, null, null, null));
+      return;
+    }
+    sendLogout();
+  }
+
+  /** Sends the FCM {@code token} through {@code pushClient}, once Intercom is initialized. */
+  void sendPushToken(
+      final IntercomIntegration.PushClient pushClient,
+      final Application application,
+      final String token) {
+    initializer.run(
+        new Runnable() {
+          @Override
+          public void run() {
+            long start = System.nanoTime();
+            pushClient.sendTokenToIntercom(application, token);
+            long duration = System.nanoTime() - start;
+            metrics.onSdkCall(SdkCall.SEND_PUSH_TOKEN, duration);
+            if (trace != null) {
+              trace.record(SdkCall.SEND_PUSH_TOKEN, null, 0, duration);
+            } else {
+              logger.verbose("IntercomPushClient.sendTokenToIntercom(application, token)");
+            }
+          }
+        });
+  }
+
+  /**
+   * Returns true if calls are journaled, in which case they can be made before the client is
+   * initialized.
+   */
+  boolean isJournaling() {
+    return journal != null;
+  }
+
+  /**
+   * Returns true while user updates and events are shed, in which case there is no point in
+   * preparing them.
+   */
+  boolean isShedding() {
+    return breaker != null && journal == null && breaker.isOpen();
+  }
+
+  /** Records that {@code call} was not made, because it was redundant or suppressed. */
+  void skip(SdkCall call, String format, Object... extra) {
+    metrics.onSkipped(call);
+    if (trace != null) {
+      trace.record(call, null, 0, -1);
+      return;
+    }
+    logger.verbose(format, extra);
+  }
+
+  /** Records that the event {@code eventName} was suppressed. */
+  void skipEvent(String eventName) {
+    metrics.onSkipped(SdkCall.LOG_EVENT);
+    if (trace != null) {
+      trace.record(SdkCall.LOG_EVENT, eventName, 0, -1);
+      return;
+    }
+    logger.verbose("Suppressed Intercom.client().logEvent(%s)", eventName);
+  }
+
+  /**
+   * Waits up to {@code timeoutNanos} until every journaled call was made, and returns true if they
+   * were. Calls held back until the next registration count as not made.
+   */
+  synchronized boolean awaitDrained(long timeoutNanos) throws InterruptedException {
+    if (journal == null) return true;
+    long deadline = System.nanoTime() + timeoutNanos;
+    while (draining || !queue.isEmpty() || !held.isEmpty()) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) return false;
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    }
+    return true;
+  }
+
+  /** Returns the recorded calls, or an empty string if calls aren't traced. */
+  String dumpTrace() {
+    return trace == null ? "" : trace.dump();
+  }
+
+  private void submit(EventJournal.Entry entry) {
+    synchronized (this) {
+      journal.append(entry);
+      queue.addLast(entry);
+      if (!initializer.isReady()) {
+        if (drainScheduled) return;
+        drainScheduled = true;
+      }
+    }
+    // Outside of the lock, since the initializer may replay other buffered work on this thread.
+    initializer.run(drain);
+  }
+
+  /**
+   * Makes the queued calls, holding back events and user updates while logged out. Only one thread
+   * drains at a time, and the calls are made without holding the lock; a thread that finds another
+   * one draining leaves the calls it queued to that one.
+   */
+  private void drain() {
+    synchronized (this) {
+      if (draining) return;
+      draining = true;
+    }
+    boolean stopped = false;
+    try {
+      EventJournal.Entry entry;
+      while ((entry = next()) != null) {
+        send(entry);
+        sent(entry);
+      }
+      stopped = true;
+    } catch (RuntimeException e) {
+      stopped = failed(e);
+      if (!stopped) throw e;
+      // The call was dropped, so go on with the ones after it.
+      drain();
+    } finally {
+      if (!stopped) stop();
+    }
+  }
+
+  /**
+   * Takes the next call to make, or returns null and stops draining if there is none or the
+   * circuit is open.
+   */
+  @Nullable
+  private synchronized EventJournal.Entry next() {
+    EventJournal.Entry entry;
+    while ((entry = queue.pollFirst()) != null) {
+      boolean sheddable = entry.call == SdkCall.LOG_EVENT || entry.call == SdkCall.UPDATE_USER;
+      if (loggedOut && sheddable) {
+        held.add(entry);
+        acknowledge();
+      } else if (sheddable && breaker != null && !breaker.allowCall()) {
+        // Keep it and everything after it journaled until a later call finds the circuit closed.
+        queue.addFirst(entry);
+        break;
+      } else {
+        inFlight = entry;
+        return entry;
+      }
+    }
+    stop();
+    return null;
+  }
+
+  /** Records that the call in flight was made. */
+  private synchronized void sent(EventJournal.Entry entry) {
+    inFlight = null;
+    attempts = 0;
+    if (entry.call == SdkCall.LOGOUT) {
+      loggedOut = true;
+    } else if (entry.call == SdkCall.REGISTER_IDENTIFIED_USER
+        || entry.call == SdkCall.REGISTER_UNIDENTIFIED_USER) {
+      loggedOut = false;
+      // Make the held back calls next, before anything queued after the registration.
+      for (int i = held.size() - 1; i >= 0; i--) {
+        queue.addFirst(held.get(i));
+      }
+      held.clear();
+    }
+    acknowledge();
+  }
+
+  /**
+   * Handles the call in flight throwing {@code e}: it is made again next time, and on the next
+   * launch if the process dies, unless it failed {@link #MAX_ATTEMPTS} times in a row, in which
+   * case it is dropped so it doesn't hold back every call after it. Returns true if it was dropped,
+   * in which case draining has stopped.
+   */
+  private synchronized boolean failed(RuntimeException e) {
+    EventJournal.Entry entry = inFlight;
+    inFlight = null;
+    if (entry == null) return false;
+    if (++attempts < MAX_ATTEMPTS) {
+      queue.addFirst(entry);
+      return false;
+    }
+    attempts = 0;
+    metrics.onSkipped(entry.call);
+    logger.error(
+        e,
+        "Dropped journaled Intercom.client() call %s, it threw %s times.",
+        entry.call,
+        MAX_ATTEMPTS);
+    acknowledge();
+    stop();
+    return true;
+  }
+
+  private synchronized void stop() {
+    draining = false;
+    notifyAll();
+  }
+
+  /** Acknowledges every journaled call before the first one that hasn't been made yet. */
+  private void acknowledge() {
+    long sequence =
+        earliest(
+            inFlight == null ? -1 : inFlight.sequence,
+            earliest(firstSequence(held), firstSequence(queue)));
+    journal.acknowledge(sequence < 0 ? journal.nextSequence() : sequence);
+  }
+
+  private static long earliest(long sequence, long other) {
+    return sequence < 0 ? other : other < 0 ? sequence : Math.min(sequence, other);
+  }
+
+  private static long firstSequence(Iterable<EventJournal.Entry> entries) {
+    for (EventJournal.Entry entry : entries) {
+      if (entry.sequence >= 0) return entry.sequence;
+    }
+    return -1;
+  }
+
+  private void send(EventJournal.Entry entry) {
+    switch (entry.call) {
+      case REGISTER_UNIDENTIFIED_USER:
+        sendRegisterUnidentifiedUser();
+        break;
+      case REGISTER_IDENTIFIED_USER:
+        sendRegisterIdentifiedUser(entry.argument);
+        break;
+      case SET_USER_HASH:
+        sendSetUserHash(entry.argument);
+        break;
+      case UPDATE_USER:
+        sendUpdateUser(entry.userUpdate);
+        break;
+      case LOG_EVENT:
+        sendLogEvent(entry.argument, entry.metadata);
+        break;
+      case LOGOUT:
+        sendLogout();
+        break;
+      default:
+        throw new AssertionError("Unknown call " + entry.call);
+    }
+  }
+
+  /**
+   * Reports a call guarded by the breaker that started at {@code start} and returned, and returns
+   * its duration.
+   */
+  private long returned(SdkCall call, long start) {
+    long duration = System.nanoTime() - start;
+    metrics.onSdkCall(call, duration);
+    if (breaker != null) {
+      breaker.onReturned(duration);
+    }
+    return duration;
+  }
+
+  /**
+   * Handles a call guarded by the breaker that threw {@code e}: without a breaker it is rethrown,
+   * otherwise the failure is recorded and the call is dropped, so that a broken Intercom doesn't
+   * throw into the caller's thread. Returns false.
+   */
+  private boolean failed(SdkCall call, RuntimeException e) {
+    if (breaker == null) throw e;
+    breaker.onFailed();
+    metrics.onSkipped(call);
+    logger.error(e, "Dropped Intercom.client() call %s, it threw.", call);
+    return false;
+  }
+
+  private void sendRegisterUnidentifiedUser() {
+    long start = System.nanoTime();
+    initializer.client().registerUnidentifiedUser();
+    long duration = System.nanoTime() - start;
+    metrics.onSdkCall(SdkCall.REGISTER_UNIDENTIFIED_USER, duration);
+    if (trace != null) {
+      trace.record(SdkCall.REGISTER_UNIDENTIFIED_USER, null, 0, duration);
+    } else {
+      logger.verbose("Intercom.client().registerUnidentifiedUser()");
+    }
+  }
+
+  private void sendRegisterIdentifiedUser(String userId) {
+    Registration registration = Registration.create().withUserId(userId);
+    long start = System.nanoTime();
+    initializer.client().registerIdentifiedUser(registration);
+    long duration = System.nanoTime() - start;
+    metrics.onSdkCall(SdkCall.REGISTER_IDENTIFIED_USER, duration);
+    if (trace != null) {
+      trace.record(SdkCall.REGISTER_IDENTIFIED_USER, null, 0, duration);
+    } else {
+      logger.verbose("Intercom.client().registerIdentifiedUser(registration)");
+    }
+  }
+
+  private void sendSetUserHash(String userHash) {
+    long start = System.nanoTime();
+    initializer.client().setUserHash(userHash);
+    long duration = System.nanoTime() - start;
+    metrics.onSdkCall(SdkCall.SET_USER_HASH, duration);
+    if (trace != null) {
+      trace.record(SdkCall.SET_USER_HASH, null, 0, duration);
+    } else {
+      logger.verbose("Intercom.client().setUserHash(userHash)");
+    }
+  }
+
+  /** Returns false if the update was dropped because it threw. */
+  private boolean sendUpdateUser(UserUpdate userUpdate) {
+    long start = System.nanoTime();
+    try {
+      initializer.client().updateUser(userUpdate.toUserAttributes());
+    } catch (RuntimeException e) {
+      return failed(SdkCall.UPDATE_USER, e);
+    }
+    long duration = returned(SdkCall.UPDATE_USER, start);
+    if (trace != null) {
+      trace.record(SdkCall.UPDATE_USER, null, userUpdate.size(), duration);
+    } else {
+      logger.verbose("Intercom.client().updateUser(%s)", userUpdate);
+    }
+    return true;
+  }
+
+  private void sendLogEvent(String eventName, @Nullable Map<String, Object> metadata) {
+    long start = System.nanoTime();
+    try {
+      if (metadata == null) {
+        initializer.client().logEvent(eventName);
+      } else {
+        initializer.client().logEvent(eventName, metadata);
+      }
+    } catch (RuntimeException e) {
+      failed(SdkCall.LOG_EVENT, e);
+      return;
+    }
+    long duration = returned(SdkCall.LOG_EVENT, start);
+    if (trace != null) {
+      trace.record(SdkCall.LOG_EVENT, eventName, metadata == null ? 0 : metadata.size(), duration);
+    } else if (metadata == null) {
+      logger.verbose("Intercom.client().logEvent(%s)", eventName);
+    } else {
+      logger.verbose("Intercom.client().logEvent(%s, %s)", eventName, metadata);
+    }
+  }
+
+  private void sendLogout() {
+    long start = System.nanoTime();
+    initializer.client().logout();
+    long duration = System.nanoTime() - start;
+    metrics.onSdkCall(SdkCall.LOGOUT, duration);
+    if (trace != null) {
+      trace.record(SdkCall.LOGOUT, null, 0, duration);
+    } else {
+      logger.verbose("Intercom.client().logout()");
+    }
+  }
+}
@@ -0,0 +1,253 @@
+package com.segment.analytics.android.integrations.intercom;
+
+import androidx.annotation.Nullable;
+
+import com.segment.analytics.ValueMap;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps traits and properties to Intercom fields according to rules from the integration settings,
+ * so mappings can be changed from the dashboard without an app release.
+ *
+ * <p>Traits can be renamed, promoted to standard Intercom user attributes or dropped; properties
+ * can be renamed or dropped, and any properties can count as revenue. The rules are compiled once
+ * into lookup tables, and each payload is mapped in a single pass over its entries.
+ *
+ * <pre>
+ * {
+ *   "traits": { "fullName": "name", "tier": "plan_tier", "debug": "" },
+ *   "properties": { "orderId": "order_id" },
+ *   "revenue": ["revenue", "total", "value"],
+ *   "currency": "currency"
+ * }
+ * </pre>
+ *
+ * An empty target drops the field. Unmapped traits and properties are sent as they are, and the
+ * {@code name}, {@code email} and {@code phone} traits are standard attributes unless remapped.
+ */
+final class MappingPlan {
+
+  private static final String TRAITS = "traits";
+  private static final String PROPERTIES = "properties";
+  private static final String REVENUE = "revenue";
+  private static final String CURRENCY = "currency";
+
+  private static final String COMPANY = "company";
+  private static final String PRODUCTS = "products";
+  private static final List<String> DEFAULT_REVENUE =
+      Collections.unmodifiableList(Arrays.asList("revenue", "total"));
+
+  private static final int STANDARD = 0;
+  private static final int CUSTOM = 1;
+  private static final int DROP = 2;
+  private static final int COMPANY_FIELD = 3;
+
+  /** Where a trait ends up. */
+  private static final class Target {
+    final int kind;
+    @Nullable final String key;
+
+    Target(int kind, @Nullable String key) {
+      this.kind = kind;
+      this.key = key;
+    }
+  }
+
+  /** The fields of one payload after mapping. */
+  static final class Mapped {
+    /** Standard user attributes, keyed by their {@link UserUpdate} name. */
+    final Map<String, Object> standard = new LinkedHashMap<>();
+    /** Custom attributes or event metadata. */
+    final Map<String, Object> custom = new LinkedHashMap<>();
+    /** Nested values, which Intercom can't take as they are. */
+    final List<Map.Entry<String, Object>> nested = new ArrayList<>(0);
+
+    @Nullable Object company;
+    @Nullable Object products;
+    @Nullable Double revenue;
+    @Nullable Object currency;
+  }
+
+  private final Map<String, Target> traits = new HashMap<>();
+  private final Map<String, String> properties = new HashMap<>();
+  private final Map<String, Integer> revenueRanks = new HashMap<>();
+  private final String currency;
+
+  /** Returns the plan described by {@code settings}, or {@code null} if there are none. */
+  @Nullable
+  static MappingPlan compile(@Nullable ValueMap settings) {
+    if (settings == null) return null;
+    return new MappingPlan(settings);
+  }
+
+  private MappingPlan(ValueMap settings) {
+    traits.put("userId", new Target(DROP, null));
+    traits.put("anonymousId", new Target(DROP, null));
+    traits.put(COMPANY, new Target(COMPANY_FIELD, null));
+    traits.put(UserUpdate.NAME, new Target(STANDARD, UserUpdate.NAME));
+    traits.put(UserUpdate.EMAIL, new Target(STANDARD, UserUpdate.EMAIL));
+    traits.put(UserUpdate.PHONE, new Target(STANDARD, UserUpdate.PHONE));
+    ValueMap traitRules = settings.getValueMap(TRAITS);
+    if (traitRules != null) {
+      for (Map.Entry<String, Object> rule : traitRules.entrySet()) {
+        traits.put(rule.getKey(), target(rule.getValue()));
+      }
+    }
+
+    ValueMap propertyRules = settings.getValueMap(PROPERTIES);
+    if (propertyRules != null) {
+      for (Map.Entry<String, Object> rule : propertyRules.entrySet()) {
+        Object target = rule.getValue();
+        properties.put(rule.getKey(), target == null ? "" : String.valueOf(target));
+      }
+    }
+
+    Object revenue = settings.get(REVENUE);
+    List<?> revenueFields = revenue instanceof List ? (List<?>) revenue : DEFAULT_REVENUE;
+    for (Object field : revenueFields) {
+      if (field != null && !revenueRanks.containsKey(String.valueOf(field))) {
+        revenueRanks.put(String.valueOf(field), revenueRanks.size());
+      }
+    }
+    currency = settings.getString(CURRENCY) == null ? CURRENCY : settings.getString(CURRENCY);
+  }
+
+  private static Target target(@Nullable Object value) {
+    String key = value == null ? "" : String.valueOf(value);
+    if (key.isEmpty()) return new Target(DROP, null);
+    switch (key) {
+      case UserUpdate.NAME:
+      case UserUpdate.EMAIL:
+      case UserUpdate.PHONE:
+      case UserUpdate.LANGUAGE_OVERRIDE:
+      case UserUpdate.SIGNED_UP_AT:
+      case UserUpdate.UNSUBSCRIBED_FROM_EMAILS:
+        return new Target(STANDARD, key);
+      default:
+        return new Target(CUSTOM, key);
+    }
+  }
+
+  /** Maps {@code traits} to standard attributes, custom attributes and the company. */
+  Mapped mapTraits(Map<String, Object> traits) {
+    Mapped mapped = new Mapped();
+    for (Map.Entry<String, Object> entry : traits.entrySet()) {
+      String key = entry.getKey();
+      Object value = entry.getValue();
+      Target target = this.traits.get(key);
+      if (target == null) {
+        putCustom(mapped, key, entry);
+        continue;
+      }
+      switch (target.kind) {
+        case STANDARD:
+          Object standard = standard(target.key, value);
+          if (standard != null) mapped.standard.put(target.key, standard);
+          break;
+        case CUSTOM:
+          putCustom(mapped, target.key, entry);
+          break;
+        case COMPANY_FIELD:
+          if (value instanceof Map) {
+            mapped.company = value;
+          } else {
+            putCustom(mapped, key, entry);
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    return mapped;
+  }
+
+  /**
+   * Maps {@code properties} to event metadata, setting the revenue to the first revenue field
+   * present if it is a double. Revenue fields that weren't used are sent as metadata.
+   */
+  @SuppressWarnings("unchecked")
+  Mapped mapProperties(Map<String, Object> properties) {
+    Mapped mapped = new Mapped();
+    Map.Entry<String, Object>[] revenues = null;
+    for (Map.Entry<String, Object> entry : properties.entrySet()) {
+      String key = entry.getKey();
+      Integer rank = revenueRanks.get(key);
+      if (rank != null) {
+        if (revenues == null) revenues = new Map.Entry[revenueRanks.size()];
+        revenues[rank] = entry;
+        continue;
+      }
+      if (key.equals(currency)) {
+        mapped.currency = entry.getValue();
+        continue;
+      }
+      if (key.equals(PRODUCTS)) {
+        mapped.products = entry.getValue();
+        continue;
+      }
+      String target = this.properties.get(key);
+      if (target == null) {
+        putCustom(mapped, key, entry);
+      } else if (!target.isEmpty()) {
+        putCustom(mapped, target, entry);
+      }
+    }
+
+    if (revenues != null) {
+      boolean decided = false;
+      for (Map.Entry<String, Object> entry : revenues) {
+        if (entry == null) continue;
+        if (!decided && entry.getValue() != null) {
+          decided = true;
+          if (entry.getValue() instanceof Double) {
+            mapped.revenue = (Double) entry.getValue();
+            continue;
+          }
+        }
+        String target = this.properties.get(entry.getKey());
+        if (target == null) {
+          putCustom(mapped, entry.getKey(), entry);
+        } else if (!target.isEmpty()) {
+          putCustom(mapped, target, entry);
+        }
+      }
+    }
+    return mapped;
+  }
+
+  private static void putCustom(Mapped mapped, String key, Map.Entry<String, Object> entry) {
+    Object value = entry.getValue();
+    if (FilteredMap.isNested(value)) {
+      mapped.nested.add(
+          key.equals(entry.getKey())
+              ? entry
+              : new AbstractMap.SimpleImmutableEntry<>(key, value));
+    } else {
+      mapped.custom.put(key, value);
+    }
+  }
+
+  /** Returns {@code value} as the type of the standard attribute {@code key}, or null. */
+  @Nullable
+  private static Object standard(String key, @Nullable Object value) {
+    if (value == null) return null;
+    switch (key) {
+      case UserUpdate.SIGNED_UP_AT:
+        value = AttributeNormalizer.value(value);
+        return value instanceof Number ? (Object) ((Number) value).longValue() : null;
+      case UserUpdate.UNSUBSCRIBED_FROM_EMAILS:
+        return value instanceof Boolean ? value : null;
+      default:
+        String string = String.valueOf(value);
+        return string.isEmpty() ? null : string;
+    }
+  }
+}
@@ -0,0 +1,200 @@
+package com.segment.analytics.android.integrations.intercom;
+
+import androidx.annotation.Nullable;
+
+import com.segment.analytics.ValueMap;
+import com.segment.analytics.android.integrations.intercom.IntercomIntegration.MetricsListener;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns nested maps and collections, which Intercom can't take, into flat attributes with dotted
+ * keys, e.g. {@code {"address": {"city": "SF"}}} becomes {@code {"address.city": "SF"}} and {@code
+ * {"tags": ["a", "b"]}} becomes {@code {"tags.0": "a", "tags.1": "b"}}. Products are summarized as
+ * {@code products.count} and {@code products.price} instead.
+ *
+ * <p>The walk is iterative and bounded by a maximum depth, a maximum number of keys and a maximum
+ * output size per payload. No more children are expanded than there are keys left, and the walk
+ * stops once the budget is used up, so the work per payload is bounded no matter how wide or deep
+ * it is. Values beyond the limits are counted without being walked, and reported as dropped
+ * nested values.
+ *
+ * <pre>
+ * { "maxDepth": 3, "maxKeys": 50, "maxOutputSize": 4096 }
+ * </pre>
+ */
+final class NestedValueFlattener {
+
+  private static final String MAX_DEPTH = "maxDepth";
+  private static final String MAX_KEYS = "maxKeys";
+  private static final String MAX_OUTPUT_SIZE = "maxOutputSize";
+
+  private static final int DEFAULT_MAX_DEPTH = 3;
+  private static final int DEFAULT_MAX_KEYS = 50;
+  private static final int DEFAULT_MAX_OUTPUT_SIZE = 4096;
+
+  private static final String PRODUCTS_COUNT = "products.count";
+  private static final String PRODUCTS_PRICE = "products.price";
+  private static final String PRICE = "price";
+
+  /** The estimated size of a value that isn't a string. */
+  private static final int VALUE_SIZE = 8;
+
+  private final int maxDepth;
+  private final int maxKeys;
+  private final int maxOutputSize;
+  private final MetricsListener metrics;
+
+  /** Returns the flattener described by {@code settings}, or {@code null} if there are none. */
+  @Nullable
+  static NestedValueFlattener from(@Nullable ValueMap settings, MetricsListener metrics) {
+    if (settings == null) return null;
+    return new NestedValueFlattener(
+        Math.max(1, settings.getInt(MAX_DEPTH, DEFAULT_MAX_DEPTH)),
+        Math.max(0, settings.getInt(MAX_KEYS, DEFAULT_MAX_KEYS)),
+        Math.max(0, settings.getInt(MAX_OUTPUT_SIZE, DEFAULT_MAX_OUTPUT_SIZE)),
+        metrics);
+  }
+
+  NestedValueFlattener(int maxDepth, int maxKeys, int maxOutputSize, MetricsListener metrics) {
+    this.maxDepth = maxDepth;
+    this.maxKeys = maxKeys;
+    this.maxOutputSize = maxOutputSize;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Returns {@code attributes} with its hidden nested values flattened into it, and {@code
+   * products} summarized if it is a collection. The view itself is returned if there is nothing to
+   * add.
+   */
+  Map<String, Object> flatten(FilteredMap attributes, @Nullable Object products) {
+    List<Map.Entry<String, Object>> nested = attributes.nested();
+    boolean hasProducts = products instanceof Collection;
+    if (nested.isEmpty() && !hasProducts) return attributes;
+
+    Map<String, Object> flattened = new LinkedHashMap<>(attributes);
+    if (hasProducts) {
+      summarizeProducts((Collection<?>) products, flattened);
+    }
+    flattenInto(flattened, nested);
+    return flattened;
+  }
+
+  /** Adds the flattened form of the {@code nested} entries to {@code target}. */
+  void flattenInto(Map<String, Object> target, List<Map.Entry<String, Object>> nested) {
+    int keys = 0;
+    int size = 0;
+    int dropped = 0;
+    // Empty maps and values past the depth take no keys, so visits are bounded separately.
+    int visits = maxKeys * (maxDepth + 1);
+    ArrayDeque<Node> stack = new ArrayDeque<>();
+    int roots = Math.min(nested.size(), maxKeys);
+    dropped += nested.size() - roots;
+    for (int i = roots - 1; i >= 0; i--) {
+      Map.Entry<String, Object> entry = nested.get(i);
+      stack.push(new Node(entry.getKey(), entry.getValue(), 1));
+    }
+
+    Node node;
+    while ((node = stack.poll()) != null) {
+      if (keys >= maxKeys || size >= maxOutputSize || visits-- == 0) {
+        // The budget is used up, so whatever is left is dropped without walking it.
+        dropped += stack.size() + 1;
+        break;
+      }
+      if (!FilteredMap.isNested(node.value)) {
+        int entrySize = node.key.length() + sizeOf(node.value);
+        if (size + entrySize <= maxOutputSize) {
+          target.put(node.key, node.value);
+          keys++;
+          size += entrySize;
+        } else {
+          dropped++;
+        }
+        continue;
+      }
+      if (node.depth > maxDepth) {
+        dropped++;
+        continue;
+      }
+      // Every child takes at least one key, so only as many as there are keys left are expanded.
+      int budget = maxKeys - keys;
+      dropped += Math.max(0, childCount(node) - budget);
+      // Push children in reverse so they come off the stack in their original order.
+      List<Node> children = children(node, budget);
+      for (int i = children.size() - 1; i >= 0; i--) {
+        stack.push(children.get(i));
+      }
+    }
+
+    if (dropped > 0) {
+      metrics.onNestedValuesDropped(dropped);
+    }
+  }
+
+  private static int childCount(Node node) {
+    return node.value instanceof Map
+        ? ((Map<?, ?>) node.value).size()
+        : ((Collection<?>) node.value).size();
+  }
+
+  /** Returns at most the first {@code limit} children of the nested {@code node}. */
+  private static List<Node> children(Node node, int limit) {
+    List<Node> children = new ArrayList<>(Math.min(childCount(node), limit));
+    // Checked before advancing, so not even one child past the limit is visited.
+    if (node.value instanceof Map) {
+      Iterator<? extends Map.Entry<?, ?>> entries = ((Map<?, ?>) node.value).entrySet().iterator();
+      while (children.size() < limit && entries.hasNext()) {
+        Map.Entry<?, ?> entry = entries.next();
+        children.add(new Node(node.key + '.' + entry.getKey(), entry.getValue(), node.depth + 1));
+      }
+    } else {
+      Iterator<?> items = ((Collection<?>) node.value).iterator();
+      while (children.size() < limit && items.hasNext()) {
+        children.add(new Node(node.key + '.' + children.size(), items.next(), node.depth + 1));
+      }
+    }
+    return children;
+  }
+
+  /** Adds the number of {@code products} and their summed price to {@code target}. */
+  static void summarizeProducts(Collection<?> products, Map<String, Object> target) {
+    double price = 0;
+    boolean priced = false;
+    for (Object product : products) {
+      if (!(product instanceof Map)) continue;
+      Object productPrice = ((Map<?, ?>) product).get(PRICE);
+      if (productPrice instanceof Number) {
+        price += ((Number) productPrice).doubleValue();
+        priced = true;
+      }
+    }
+    target.put(PRODUCTS_COUNT, products.size());
+    if (priced) {
+      target.put(PRODUCTS_PRICE, price);
+    }
+  }
+
+  private static int sizeOf(@Nullable Object value) {
+    return value instanceof String ? ((String) value).length() : VALUE_SIZE;
+  }
+
+  private static final class Node {
+    final String key;
+    final Object value;
+    final int depth;
+
+    Node(String key, Object value, int depth) {
+      this.key = key;
+      this.value = value;
+      this.depth = depth;
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package com.segment.analytics.android.integrations.intercom;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.os.Process;
+import androidx.annotation.Nullable;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * Decides in which of the app's processes the integration is created. Segment is set up in every
+ * process of an app, but the messenger only ever shows in some of them, and initializing Intercom
+ * in the others costs startup time and memory for nothing.
+ *
+ * <pre>
+ * {
+ *   "processes": ["com.example.app", ":messenger"]
+ * }
+ * </pre>
+ *
+ * <p>Processes are named in full, or relative to the package name with a leading colon, like in the
+ * manifest; the main process is named after the package. Without the setting, or if the current
+ * process name can't be determined, the integration is created in every process.
+ */
+final class ProcessPolicy {
+
+  private static final String CMDLINE = "/proc/self/cmdline";
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private ProcessPolicy() {}
+
+  /** Returns true if the integration should be created in this process, given {@code processes}. */
+  static boolean allows(Context context, @Nullable Object processes) {
+    if (!(processes instanceof List)) return true;
+    String current = currentProcessName(context);
+    if (current == null) return true;
+    String packageName = context.getPackageName();
+    for (Object process : (List<?>) processes) {
+      if (process == null) continue;
+      String name = String.valueOf(process);
+      if (name.startsWith(":")) name = packageName + name;
+      if (name.equals(current)) return true;
+    }
+    return false;
+  }
+
+  /** Returns the name of the current process, or {@code null} if it can't be determined. */
+  @Nullable
+  static String currentProcessName(Context context) {
+    // Reading the command line is a single small read, unlike asking the activity manager.
+    String name = readCommandLine();
+    if (name != null) return name;
+    ActivityManager activityManager =
+        (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+    if (activityManager == null) return null;
+    List<ActivityManager.RunningAppProcessInfo> processes =
+        activityManager.getRunningAppProcesses();
+    if (processes == null) return null;
+    int pid = Process.myPid();
+    for (ActivityManager.RunningAppProcessInfo process : processes) {
+      if (process.pid == pid) return process.processName;
+    }
+    return null;
+  }
+
+  @Nullable
+  private static String readCommandLine() {
+    byte[] buffer = new byte[256];
+    int length;
+    try {
+      FileInputStream in = new FileInputStream(CMDLINE);
+      try {
+        length = in.read(buffer);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      return null;
+    }
+    // Arguments are separated by NUL characters; the first one is the process name.
+    int end = 0;
+    while (end < length && buffer[end] != 0) {
+      end++;
+    }
+    return end == 0 ? null : new String(buffer, 0, end, UTF_8);
+  }
+}
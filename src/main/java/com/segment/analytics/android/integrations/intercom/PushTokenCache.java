@@ -0,0 +1,48 @@
+package com.segment.analytics.android.integrations.intercom;
+
+import android.content.SharedPreferences;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers which FCM token was last sent to Intercom, and for which user, so the token is only
+ * sent again once either changes. Only a fingerprint of the pair is kept, in memory and in the
+ * preferences, so the state takes eight bytes no matter how long tokens and user ids are.
+ */
+final class PushTokenCache {
+
+  private static final String PUSH_TOKEN_KEY = "pushToken";
+  /** Stored while no token was sent; a fingerprint that happens to be 0 is bumped. */
+  private static final long NONE = 0;
+
+  private final SharedPreferences preferences;
+  private final AtomicLong sent;
+
+  PushTokenCache(SharedPreferences preferences) {
+    this.preferences = preferences;
+    this.sent = new AtomicLong(preferences.getLong(PUSH_TOKEN_KEY, NONE));
+  }
+
+  /**
+   * Returns true if {@code token} wasn't sent yet for {@code userKey}, and remembers it as sent,
+   * assuming the caller sends it.
+   */
+  boolean markSent(String userKey, String token) {
+    long fingerprint = AttributeCache.fingerprint(userKey + '\u0000' + token);
+    if (fingerprint == NONE) fingerprint++;
+    long previous;
+    do {
+      previous = sent.get();
+      if (previous == fingerprint) return false;
+    } while (!sent.compareAndSet(previous, fingerprint));
+    preferences.edit().putLong(PUSH_TOKEN_KEY, fingerprint).apply();
+    return true;
+  }
+
+  /** Forgets the token sent last, e.g. after logging out, so it is sent again. */
+  void clear() {
+    if (sent.getAndSet(NONE) != NONE) {
+      preferences.edit().remove(PUSH_TOKEN_KEY).apply();
+    }
+  }
+}
@@ -0,0 +1,235 @@
+package com.segment.analytics.android.integrations.intercom;
+
+import android.content.SharedPreferences;
+import androidx.annotation.Nullable;
+
+import com.segment.analytics.android.integrations.intercom.IntercomIntegration.MetricsListener.SdkCall;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import static com.segment.analytics.internal.Utils.isNullOrEmpty;
+
+/**
+ * Tracks which user is registered with Intercom so that {@code registerIdentifiedUser}, {@code
+ * registerUnidentifiedUser}, {@code setUserHash} and {@code logout} are only called when the
+ * registration actually changes. The state is persisted, since Intercom itself remembers the
+ * registered user across launches.
+ *
+ * <p>Until a state has been persisted the registration is unknown (it may have been made by an
+ * older version of this integration), and every call is forwarded as before.
+ *
+ * <p>The registration is an immutable {@link State}, so it can be read from any thread without
+ * locking, and redundant calls are skipped without locking. Transitions take a lock and make their
+ * calls before publishing the next state, so a concurrent {@code identify} and {@code reset} can't
+ * make their calls in a different order than their states are published.
+ */
+final class RegistrationStateMachine {
+
+  enum Kind {
+    NONE,
+    UNIDENTIFIED,
+    IDENTIFIED
+  }
+
+  static final class State {
+    static final State NONE = new State(Kind.NONE, null, null);
+    static final State UNIDENTIFIED = new State(Kind.UNIDENTIFIED, null, null);
+
+    final Kind kind;
+    @Nullable final String userId;
+    @Nullable final String userHash;
+
+    State(Kind kind, @Nullable String userId, @Nullable String userHash) {
+      this.kind = kind;
+      this.userId = userId;
+      this.userHash = userHash;
+    }
+
+    static State identified(String userId, @Nullable String userHash) {
+      return new State(Kind.IDENTIFIED, userId, userHash);
+    }
+
+    boolean isIdentifiedAs(String userId) {
+      return kind == Kind.IDENTIFIED && userId.equals(this.userId);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof State)) return false;
+      State other = (State) o;
+      return kind == other.kind && equal(userId, other.userId) && equal(userHash, other.userHash);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = kind.hashCode();
+      result = 31 * result + (userId != null ? userId.hashCode() : 0);
+      result = 31 * result + (userHash != null ? userHash.hashCode() : 0);
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      return "State{kind=" + kind + ", userId=" + userId + '}';
+    }
+
+    private static boolean equal(@Nullable Object a, @Nullable Object b) {
+      return a == null ? b == null : a.equals(b);
+    }
+  }
+
+  private static final String REGISTRATION_KEY = "registration";
+  private static final String KIND = "kind";
+  private static final String USER_ID = "userId";
+  private static final String USER_HASH = "userHash";
+
+  private final SharedPreferences preferences;
+  /** The current registration, {@code null} until it is known. Written while holding this. */
+  private final AtomicReference<State> state;
+
+  RegistrationStateMachine(SharedPreferences preferences) {
+    this.preferences = preferences;
+    this.state = new AtomicReference<>(load(preferences));
+  }
+
+  /** Returns the current registration, or {@code null} if it is not known yet. */
+  @Nullable
+  State state() {
+    return state.get();
+  }
+
+  /** Moves to the registration for an {@code identify} call with the given user. */
+  void identify(IntercomSdk sdk, @Nullable String userId, @Nullable String userHash) {
+    // Identifying the registered user again is the common case, and needs no lock.
+    State current = state.get();
+    if (current != null && isNullOrEmpty(userId) && current.kind != Kind.NONE) {
+      skipUnidentified(sdk, current);
+      return;
+    }
+    if (current != null
+        && !isNullOrEmpty(userId)
+        && current.isIdentifiedAs(userId)
+        && (userHash == null || userHash.equals(current.userHash))) {
+      skipIdentified(sdk);
+      return;
+    }
+    synchronized (this) {
+      transitionToIdentify(sdk, userId, userHash);
+    }
+  }
+
+  // Guarded by this.
+  private void transitionToIdentify(
+      IntercomSdk sdk, @Nullable String userId, @Nullable String userHash) {
+    State current = state.get();
+
+    if (isNullOrEmpty(userId)) {
+      if (current == null || current.kind == Kind.NONE) {
+        sdk.registerUnidentifiedUser();
+        transition(current, State.UNIDENTIFIED);
+      } else {
+        // Another thread registered a user since the check without the lock; that one stays.
+        skipUnidentified(sdk, current);
+      }
+      return;
+    }
+
+    if (current != null && current.isIdentifiedAs(userId)) {
+      skipIdentified(sdk);
+      if (userHash != null && !userHash.equals(current.userHash)) {
+        sdk.setUserHash(userHash);
+        transition(current, State.identified(userId, userHash));
+      }
+      return;
+    }
+
+    if (current != null && current.kind == Kind.IDENTIFIED) {
+      // Intercom requires a logout before registering a different identified user.
+      sdk.logout();
+    }
+    sdk.register(userId, userHash);
+    transition(current, State.identified(userId, userHash));
+  }
+
+  /** Logs out of Intercom unless no user is registered. */
+  void reset(IntercomSdk sdk) {
+    State current = state.get();
+    if (current != null && current.kind == Kind.NONE) {
+      skipLogout(sdk);
+      return;
+    }
+    synchronized (this) {
+      current = state.get();
+      if (current != null && current.kind == Kind.NONE) {
+        skipLogout(sdk);
+        return;
+      }
+      sdk.logout();
+      transition(current, State.NONE);
+    }
+  }
+
+  private static void skipUnidentified(IntercomSdk sdk, State current) {
+    if (current.kind == Kind.IDENTIFIED) {
+      // Segment only drops the user id on reset(), which logs out; keep the identified user.
+      sdk.skip(
+          SdkCall.REGISTER_UNIDENTIFIED_USER,
+          "Skipping Intercom.client().registerUnidentifiedUser(), a user is identified.");
+    } else {
+      sdk.skip(
+          SdkCall.REGISTER_UNIDENTIFIED_USER,
+          "Skipping Intercom.client().registerUnidentifiedUser(), already registered.");
+    }
+  }
+
+  private static void skipIdentified(IntercomSdk sdk) {
+    sdk.skip(
+        SdkCall.REGISTER_IDENTIFIED_USER,
+        "Skipping Intercom.client().registerIdentifiedUser(), already registered.");
+  }
+
+  private static void skipLogout(IntercomSdk sdk) {
+    sdk.skip(SdkCall.LOGOUT, "Skipping Intercom.client().logout(), no user is registered.");
+  }
+
+  /**
+   * Publishes {@code next} after the calls moving away from {@code current} were made. Only called
+   * while holding the lock, so calls and published states follow the same order on all threads.
+   */
+  private void transition(@Nullable State current, State next) {
+    if (next.equals(current)) return;
+    state.set(next);
+    save(preferences, next);
+  }
+
+  @Nullable
+  private static State load(SharedPreferences preferences) {
+    String json = preferences.getString(REGISTRATION_KEY, null);
+    if (json == null) return null;
+    try {
+      JSONObject object = new JSONObject(json);
+      Kind kind = Kind.valueOf(object.getString(KIND));
+      String userId = object.has(USER_ID) ? object.getString(USER_ID) : null;
+      String userHash = object.has(USER_HASH) ? object.getString(USER_HASH) : null;
+      return new State(kind, userId, userHash);
+    } catch (JSONException | IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  private static void save(SharedPreferences preferences, State state) {
+    JSONObject object = new JSONObject();
+    try {
+      object.put(KIND, state.kind.name());
+      object.put(USER_ID, state.userId);
+      object.put(USER_HASH, state.userHash);
+    } catch (JSONException e) {
+      throw new AssertionError(e);
+    }
+    preferences.edit().putString(REGISTRATION_KEY, object.toString()).apply();
+  }
+}
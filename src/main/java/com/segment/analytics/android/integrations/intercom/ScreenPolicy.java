@@ -0,0 +1,94 @@
+package com.segment.analytics.android.integrations.intercom;
+
+import androidx.annotation.Nullable;
+
+import com.segment.analytics.ValueMap;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Decides which screen views are sent to Intercom and under which event name. A view of the same
+ * screen as the previous one within the dedup window, e.g. after a rotation or a fragment being
+ * re-attached, is dropped, and the screen name goes through an {@link EventPolicy} built from the
+ * same settings, so screens can be allowed, denied, rate limited and sampled like tracks.
+ *
+ * <pre>
+ * {
+ *   "eventName": "Viewed {name} Screen",
+ *   "dedupWindowMillis": 1000,
+ *   "allow": ["Checkout*"],
+ *   "sampleRates": { "Home": 0.1 }
+ * }
+ * </pre>
+ */
+final class ScreenPolicy {
+
+  private static final String EVENT_NAME = "eventName";
+  private static final String DEDUP_WINDOW_MILLIS = "dedupWindowMillis";
+  private static final String NAME_PLACEHOLDER = "{name}";
+  private static final String DEFAULT_EVENT_NAME = "Viewed {name} Screen";
+  private static final long DEFAULT_DEDUP_WINDOW_MILLIS = 1000;
+
+  private final String prefix;
+  @Nullable private final String suffix;
+  private final long dedupWindowNanos;
+  @Nullable private final EventPolicy policy;
+
+  /** The screen viewed last, with when it was viewed. */
+  private static final class View {
+    final String screen;
+    final long nanos;
+
+    View(String screen, long nanos) {
+      this.screen = screen;
+      this.nanos = nanos;
+    }
+  }
+
+  private final AtomicReference<View> lastView = new AtomicReference<>();
+
+  /** Returns the policy described by {@code settings}, or {@code null} if screens are off. */
+  @Nullable
+  static ScreenPolicy from(@Nullable ValueMap settings) {
+    if (settings == null) return null;
+    return new ScreenPolicy(settings);
+  }
+
+  private ScreenPolicy(ValueMap settings) {
+    String eventName = settings.getString(EVENT_NAME);
+    if (eventName == null || eventName.isEmpty()) eventName = DEFAULT_EVENT_NAME;
+    // Split the template once, so naming an event is a single concatenation.
+    int placeholder = eventName.indexOf(NAME_PLACEHOLDER);
+    if (placeholder < 0) {
+      prefix = eventName;
+      suffix = null;
+    } else {
+      prefix = eventName.substring(0, placeholder);
+      suffix = eventName.substring(placeholder + NAME_PLACEHOLDER.length());
+    }
+    dedupWindowNanos =
+        TimeUnit.MILLISECONDS.toNanos(
+            Math.max(0, settings.getLong(DEDUP_WINDOW_MILLIS, DEFAULT_DEDUP_WINDOW_MILLIS)));
+    policy = EventPolicy.from(settings);
+  }
+
+  /** Returns true if the view of {@code screen} repeats the previous view within the window. */
+  boolean isRepeat(String screen) {
+    long now = System.nanoTime();
+    View previous = lastView.getAndSet(new View(screen, now));
+    return previous != null
+        && screen.equals(previous.screen)
+        && now - previous.nanos < dedupWindowNanos;
+  }
+
+  /** Returns true if views of {@code screen} should be forwarded. */
+  boolean allow(String screen) {
+    return policy == null || policy.allow(screen);
+  }
+
+  /** Returns the name of the Intercom event for a view of {@code screen}. */
+  String eventName(String screen) {
+    return suffix == null ? prefix : prefix + screen + suffix;
+  }
+}
@@ -0,0 +1,71 @@
+package com.segment.analytics.android.integrations.intercom;
+
+import androidx.annotation.Nullable;
+
+import com.segment.analytics.android.integrations.intercom.IntercomIntegration.MetricsListener.SdkCall;
+
+import java.util.Locale;
+
+/**
+ * Records the most recent SDK calls into preallocated fixed-size slots, in place of verbose log
+ * lines. Recording a call stores a few references and numbers; nothing is formatted until the trace
+ * is dumped, e.g. from a debug menu or when a crash report is collected.
+ */
+final class TraceBuffer {
+
+  private static final SdkCall[] CALLS = SdkCall.values();
+
+  private final int mask;
+  private final long[] timestamps;
+  private final byte[] calls;
+  private final String[] names;
+  private final int[] attributeCounts;
+  private final long[] durations;
+  private long next;
+
+  /** Creates a buffer holding at least {@code capacity} entries, rounded up to a power of two. */
+  TraceBuffer(int capacity) {
+    int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+    mask = size - 1;
+    timestamps = new long[size];
+    calls = new byte[size];
+    names = new String[size];
+    attributeCounts = new int[size];
+    durations = new long[size];
+  }
+
+  /**
+   * Records {@code call}, made for the event {@code name} with {@code attributeCount} attributes.
+   * A negative {@code durationNanos} records a call that was skipped.
+   */
+  synchronized void record(
+      SdkCall call, @Nullable String name, int attributeCount, long durationNanos) {
+    int slot = (int) (next++ & mask);
+    timestamps[slot] = System.currentTimeMillis();
+    calls[slot] = (byte) call.ordinal();
+    names[slot] = name;
+    attributeCounts[slot] = attributeCount;
+    durations[slot] = durationNanos;
+  }
+
+  /** Formats the recorded calls, oldest first, one per line. */
+  synchronized String dump() {
+    long first = Math.max(0, next - (mask + 1));
+    StringBuilder dump = new StringBuilder((int) (next - first) * 64);
+    for (long i = first; i < next; i++) {
+      int slot = (int) (i & mask);
+      dump.append(String.format(Locale.US, "%tT.%<tL %s", timestamps[slot], CALLS[calls[slot]]));
+      if (names[slot] != null) {
+        dump.append(' ').append(names[slot]);
+      }
+      dump.append(" attributes=").append(attributeCounts[slot]);
+      if (durations[slot] < 0) {
+        dump.append(" skipped");
+      } else {
+        dump.append(' ').append(durations[slot] / 1000).append("us");
+      }
+      dump.append('\n');
+    }
+    return dump.toString();
+  }
+}
@@ -0,0 +1,192 @@
+package com.segment.analytics.android.integrations.intercom;
+
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.intercom.android.sdk.Company;
+import io.intercom.android.sdk.UserAttributes;
+
+/**
+ * The attributes of a single {@code updateUser} call, kept as plain maps so they can be compared,
+ * diffed and merged before being turned into Intercom's opaque {@link UserAttributes}.
+ */
+final class UserUpdate {
+
+  // Intercom specced user attributes
+  static final String NAME = "name";
+  static final String EMAIL = "email";
+  static final String PHONE = "phone";
+  static final String LANGUAGE_OVERRIDE = "languageOverride";
+  static final String SIGNED_UP_AT = "signedUpAt";
+  static final String UNSUBSCRIBED_FROM_EMAILS = "unsubscribedFromEmails";
+
+  // Intercom specced company attributes
+  static final String COMPANY_ID = "id";
+  static final String CREATED_AT = "createdAt";
+  static final String MONTHLY_SPEND = "monthlySpend";
+  static final String PLAN = "plan";
+
+  final Map<String, Object> standard;
+  final Map<String, Object> custom;
+  /** Company fields keyed by their Segment name, {@code null} if no company was sent. */
+  @Nullable final Map<String, Object> company;
+
+  UserUpdate(
+      Map<String, Object> standard,
+      Map<String, Object> custom,
+      @Nullable Map<String, Object> company) {
+    this.standard = Collections.unmodifiableMap(standard);
+    this.custom = Collections.unmodifiableMap(custom);
+    this.company = company == null ? null : Collections.unmodifiableMap(company);
+  }
+
+  boolean isEmpty() {
+    return standard.isEmpty() && custom.isEmpty() && company == null;
+  }
+
+  /** Returns the number of attributes, counting every company field. */
+  int size() {
+    return standard.size() + custom.size() + (company == null ? 0 : company.size());
+  }
+
+  @Nullable
+  String companyId() {
+    if (company == null) return null;
+    Object id = company.get(COMPANY_ID);
+    return id == null ? null : String.valueOf(id);
+  }
+
+  /** Returns this update with its company replaced by {@code company}. */
+  UserUpdate withCompany(@Nullable Map<String, Object> company) {
+    if (company == this.company) return this;
+    return new UserUpdate(standard, custom, company);
+  }
+
+  /**
+   * Returns an update containing the fields of both this update and {@code newer}, where fields
+   * set in {@code newer} win. Fields of the same company are merged; a different company replaces
+   * this one.
+   */
+  UserUpdate merge(UserUpdate newer) {
+    Map<String, Object> mergedStandard = new LinkedHashMap<>(standard);
+    mergedStandard.putAll(newer.standard);
+    Map<String, Object> mergedCustom = new LinkedHashMap<>(custom);
+    mergedCustom.putAll(newer.custom);
+
+    Map<String, Object> mergedCompany = newer.company;
+    String companyId = companyId();
+    if (newer.company == null) {
+      mergedCompany = company;
+    } else if (companyId != null && companyId.equals(newer.companyId())) {
+      mergedCompany = new LinkedHashMap<>(company);
+      mergedCompany.putAll(newer.company);
+    }
+    return new UserUpdate(mergedStandard, mergedCustom, mergedCompany);
+  }
+
+  UserAttributes toUserAttributes() {
+    UserAttributes.Builder userAttributes = new UserAttributes.Builder();
+    for (Map.Entry<String, Object> entry : standard.entrySet()) {
+      Object value = entry.getValue();
+      switch (entry.getKey()) {
+        case NAME:
+          userAttributes.withName((String) value);
+          break;
+        case EMAIL:
+          userAttributes.withEmail((String) value);
+          break;
+        case PHONE:
+          userAttributes.withPhone((String) value);
+          break;
+        case LANGUAGE_OVERRIDE:
+          userAttributes.withLanguageOverride((String) value);
+          break;
+        case SIGNED_UP_AT:
+          userAttributes.withSignedUpAt((Long) value);
+          break;
+        case UNSUBSCRIBED_FROM_EMAILS:
+          userAttributes.withUnsubscribedFromEmails((Boolean) value);
+          break;
+        default:
+          throw new AssertionError("Unknown standard attribute " + entry.getKey());
+      }
+    }
+    if (company != null) {
+      userAttributes.withCompany(toCompany(company));
+    }
+    for (Map.Entry<String, Object> entry : custom.entrySet()) {
+      userAttributes.withCustomAttribute(entry.getKey(), entry.getValue());
+    }
+    return userAttributes.build();
+  }
+
+  static Company toCompany(Map<String, Object> fields) {
+    Company.Builder company = new Company.Builder();
+    if (!fields.containsKey(COMPANY_ID)) return company.build();
+
+    for (Map.Entry<String, Object> entry : fields.entrySet()) {
+      Object value = entry.getValue();
+      switch (entry.getKey()) {
+        case COMPANY_ID:
+          company.withCompanyId(String.valueOf(value));
+          break;
+        case NAME:
+          company.withName(String.valueOf(value));
+          break;
+        case CREATED_AT:
+          company.withCreatedAt((Long) value);
+          break;
+        case MONTHLY_SPEND:
+          company.withMonthlySpend((Integer) value);
+          break;
+        case PLAN:
+          company.withPlan(String.valueOf(value));
+          break;
+        default:
+          company.withCustomAttribute(entry.getKey(), value);
+          break;
+      }
+    }
+    return company.build();
+  }
+
+  /** Mutable accumulator used while reading traits. */
+  static final class Builder {
+    private final Map<String, Object> standard = new LinkedHashMap<>();
+    private Map<String, Object> custom = new LinkedHashMap<>();
+    private Map<String, Object> company;
+
+    Builder putStandard(String key, Object value) {
+      standard.put(key, value);
+      return this;
+    }
+
+    Builder putCustom(String key, Object value) {
+      custom.put(key, value);
+      return this;
+    }
+
+    /** Replaces the custom attributes with {@code custom}, which may be a view of the traits. */
+    Builder custom(Map<String, Object> custom) {
+      this.custom = custom;
+      return this;
+    }
+
+    Builder company(Map<String, Object> company) {
+      this.company = company;
+      return this;
+    }
+
+    UserUpdate build() {
+      return new UserUpdate(standard, custom, company);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "UserUpdate{standard=" + standard + ", custom=" + custom + ", company=" + company + '}';
+  }
+}
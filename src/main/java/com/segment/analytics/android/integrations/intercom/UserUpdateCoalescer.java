@@ -0,0 +1,114 @@
+package com.segment.analytics.android.integrations.intercom;
+
+import java.util.concurrent.Future;
+
+/**
+ * Holds back user updates for a short window so that the {@code identify} and {@code group} calls
+ * of a single flow reach Intercom as one {@code updateUser} call. The window starts with the first
+ * update and the merged update is sent when it closes or when {@link #flush()} is called.
+ *
+ * <p>Updates are only ever merged for the same user; an update for another user sends whatever is
+ * pending first. Sends happen on the calling thread after this object's lock is released, or on the
+ * {@link FlushScheduler}'s executor when a window closes, so callers that are about to change the
+ * registered Intercom user should call {@link #flushUnless(String)} first.
+ */
+final class UserUpdateCoalescer {
+
+  interface Sink {
+
+    void updateUser(String userKey, UserUpdate userUpdate);
+  }
+
+  private final Sink sink;
+  private final long windowMillis;
+  private final FlushScheduler scheduler;
+
+  // Guarded by this.
+  private String pendingUserKey;
+  private UserUpdate pendingUpdate;
+  /** Counts windows, so a close that was already handed off can't cut the next window short. */
+  private long window;
+  private Future<?> close;
+
+  UserUpdateCoalescer(Sink sink, long windowMillis, FlushScheduler scheduler) {
+    this.sink = sink;
+    this.windowMillis = windowMillis;
+    this.scheduler = scheduler;
+  }
+
+  void add(String userKey, UserUpdate userUpdate) {
+    String flushedUserKey = null;
+    UserUpdate flushedUpdate = null;
+    synchronized (this) {
+      if (pendingUpdate != null && !pendingUserKey.equals(userKey)) {
+        flushedUserKey = pendingUserKey;
+        flushedUpdate = take();
+      }
+      if (pendingUpdate == null) {
+        pendingUserKey = userKey;
+        pendingUpdate = userUpdate;
+        final long opened = window;
+        close =
+            scheduler.schedule(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    close(opened);
+                  }
+                },
+                windowMillis);
+      } else {
+        pendingUpdate = pendingUpdate.merge(userUpdate);
+      }
+    }
+    if (flushedUpdate != null) {
+      sink.updateUser(flushedUserKey, flushedUpdate);
+    }
+  }
+
+  /** Sends the pending update if it belongs to a user other than {@code userKey}. */
+  void flushUnless(String userKey) {
+    String flushedUserKey;
+    UserUpdate flushedUpdate;
+    synchronized (this) {
+      if (pendingUpdate == null || pendingUserKey.equals(userKey)) return;
+      flushedUserKey = pendingUserKey;
+      flushedUpdate = take();
+    }
+    sink.updateUser(flushedUserKey, flushedUpdate);
+  }
+
+  /** Sends the pending update, if any. */
+  void flush() {
+    String flushedUserKey;
+    UserUpdate flushedUpdate;
+    synchronized (this) {
+      if (pendingUpdate == null) return;
+      flushedUserKey = pendingUserKey;
+      flushedUpdate = take();
+    }
+    sink.updateUser(flushedUserKey, flushedUpdate);
+  }
+
+  private void close(long opened) {
+    String flushedUserKey;
+    UserUpdate flushedUpdate;
+    synchronized (this) {
+      if (window != opened || pendingUpdate == null) return;
+      flushedUserKey = pendingUserKey;
+      flushedUpdate = take();
+    }
+    sink.updateUser(flushedUserKey, flushedUpdate);
+  }
+
+  /** Returns the pending update and ends its window, cancelling the window's close. */
+  private UserUpdate take() {
+    UserUpdate userUpdate = pendingUpdate;
+    pendingUserKey = null;
+    pendingUpdate = null;
+    window++;
+    close.cancel(false);
+    close = null;
+    return userUpdate;
+  }
+}
@@ -1,43 +1,75 @@
 package com.segment.analytics.android.integration.intercom;
 
 import android.app.Application;
+import android.content.Context;
+import com.segment.analytics.Analytics;
 import com.segment.analytics.Options;
 import com.segment.analytics.Properties;
 import com.segment.analytics.Properties.Product;
 import com.segment.analytics.Traits;
 import com.segment.analytics.ValueMap;
 import com.segment.analytics.android.integrations.intercom.IntercomIntegration;
+import com.segment.analytics.android.integrations.intercom.IntercomIntegration.MetricsListener.Limit;
+import com.segment.analytics.android.integrations.intercom.IntercomIntegration.MetricsListener.Operation;
+import com.segment.analytics.android.integrations.intercom.IntercomIntegration.MetricsListener.SdkCall;
+import com.segment.analytics.android.integrations.intercom.IntercomMetrics;
 import com.segment.analytics.core.tests.BuildConfig;
+import com.segment.analytics.integrations.IdentifyPayload;
 import com.segment.analytics.integrations.Logger;
 import com.segment.analytics.test.GroupPayloadBuilder;
 import com.segment.analytics.test.IdentifyPayloadBuilder;
+import com.segment.analytics.test.ScreenPayloadBuilder;
 import com.segment.analytics.test.TrackPayloadBuilder;
 import io.intercom.android.sdk.Company;
 import io.intercom.android.sdk.Intercom;
 import io.intercom.android.sdk.UserAttributes;
 import io.intercom.android.sdk.identity.Registration;
+import java.math.BigDecimal;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import org.assertj.core.matcher.AssertionMatcher;
+import org.json.JSONObject;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.rule.PowerMockRule;
 import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
 
 import static com.segment.analytics.Analytics.LogLevel.VERBOSE;
 import static com.segment.analytics.Utils.createTraits;
 import static org.assertj.core.api.Java6Assertions.assertThat;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.argThat;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 import static org.powermock.api.mockito.PowerMockito.verifyStatic;
 
@@ -79,6 +111,77 @@ public class IntercomTest {
         Intercom.initialize(application, "123", "123");
     }
 
+    @Test
+    public void factorySkipsProcessesThatArentAllowed() {
+        PowerMockito.mockStatic(Intercom.class);
+        Analytics analytics = mock(Analytics.class);
+        when(analytics.getApplication()).thenReturn(RuntimeEnvironment.application);
+        when(analytics.logger("Intercom")).thenReturn(Logger.with(VERBOSE));
+        ValueMap settings = new ValueMap()
+            .putValue("mobileApiKey", "123")
+            .putValue("appId", "123");
+
+        assertThat(IntercomIntegration.FACTORY.create(settings, analytics)).isNotNull();
+        assertThat(IntercomIntegration.FACTORY.create(
+            settings.putValue("processes", Collections.singletonList(":sync")), analytics))
+            .isNull();
+
+        verifyStatic(times(1));
+        Intercom.initialize(RuntimeEnvironment.application, "123", "123");
+    }
+
+    @Test
+    public void initializeDeferredUntilFirstPayload() {
+        PowerMockito.mockStatic(Intercom.class);
+        integration = new IntercomIntegration(mockProvider, application,
+            new ValueMap()
+                .putValue("mobileApiKey", "123")
+                .putValue("appId", "123")
+                .putValue("deferInitialization", "firstPayload"),
+            Logger.with(VERBOSE));
+
+        verifyStatic(never());
+        Intercom.initialize(application, "123", "123");
+
+        integration.track(new TrackPayloadBuilder()
+            .event("Baz")
+            .build());
+
+        verifyStatic();
+        Intercom.initialize(application, "123", "123");
+        verify(intercom).logEvent("Baz");
+    }
+
+    @Test
+    public void payloadsBufferedBeforeInitializationDropOldestTracksWhenFull() {
+        PowerMockito.mockStatic(Intercom.class);
+        integration = new IntercomIntegration(mockProvider, application,
+            new ValueMap()
+                .putValue("mobileApiKey", "123")
+                .putValue("appId", "123")
+                .putValue("deferInitialization", "firstPayload"),
+            Logger.with(VERBOSE));
+
+        ShadowLooper.pauseMainLooper();
+        integration.identify(new IdentifyPayloadBuilder()
+            .traits(createTraits("123"))
+            .build());
+        for (int i = 0; i < 500; i++) {
+            integration.track(new TrackPayloadBuilder()
+                .event("Event " + i)
+                .build());
+        }
+        verifyStatic(never());
+        Intercom.initialize(application, "123", "123");
+        ShadowLooper.unPauseMainLooper();
+
+        verify(intercom).registerIdentifiedUser(any(Registration.class));
+        verify(intercom, never()).logEvent("Event 0");
+        verify(intercom).logEvent("Event 1");
+        verify(intercom).logEvent("Event 499");
+        assertThat(integration.getDroppedCount()).isEqualTo(1);
+    }
+
     @Test
     public void identifyWithUserId() {
         Traits traits = createTraits("123");
@@ -110,7 +213,10 @@ public class IntercomTest {
             )
             .build());
 
-        verify(intercom).setUserHash("567");
+        InOrder inOrder = inOrder(intercom);
+        inOrder.verify(intercom).setUserHash("567");
+        inOrder.verify(intercom).registerIdentifiedUser(
+            isEqualToComparingFieldByFieldRecursively(Registration.create().withUserId("123")));
     }
 
     @Test
@@ -171,6 +277,26 @@ public class IntercomTest {
         verify(intercom).updateUser(isEqualToComparingFieldByFieldRecursively(expectedUserAttributes));
     }
 
+    @Test
+    public void identifyDoesNotModifyTraits() {
+        Map<String, Object> company = new HashMap<>();
+        company.put("id", "456");
+        company.put("name", "Acme");
+
+        Traits traits = createTraits("123")
+            .putName("Brennan")
+            .putValue("company", company);
+        Map<String, Object> expectedTraits = new HashMap<>(traits);
+        Map<String, Object> expectedCompany = new HashMap<>(company);
+
+        integration.identify(new IdentifyPayloadBuilder()
+            .traits(traits)
+            .build());
+
+        assertThat(traits).isEqualTo(expectedTraits);
+        assertThat(company).isEqualTo(expectedCompany);
+    }
+
     @Test
     public void identifyWithCompanyNoId() {
         Map<String, Object> company = new HashMap<>();
@@ -214,6 +340,169 @@ public class IntercomTest {
         verify(intercom).updateUser(isEqualToComparingFieldByFieldRecursively(expectedUserAttributes));
     }
 
+    @Test
+    public void identifyWithUnchangedTraitsSkipsUpdateUser() {
+        integration = integrationWithSettings(new ValueMap()
+            .putValue("sendChangedAttributesOnly", true));
+
+        Traits traits = createTraits("123")
+            .putName("Brennan")
+            .putEmail("testing@segment.com");
+
+        integration.identify(new IdentifyPayloadBuilder()
+            .traits(traits)
+            .build());
+        integration.identify(new IdentifyPayloadBuilder()
+            .traits(traits)
+            .build());
+
+        verify(intercom, times(1)).updateUser(any(UserAttributes.class));
+    }
+
+    @Test
+    public void identifySendsOnlyChangedAttributes() {
+        integration = integrationWithSettings(new ValueMap()
+            .putValue("sendChangedAttributesOnly", true));
+
+        integration.identify(new IdentifyPayloadBuilder()
+            .traits(createTraits("123")
+                .putName("Brennan")
+                .putEmail("testing@segment.com"))
+            .build());
+        integration.identify(new IdentifyPayloadBuilder()
+            .traits(createTraits("123")
+                .putName("Brennan")
+                .putEmail("brennan@segment.com"))
+            .build());
+
+        UserAttributes expectedUserAttributes = new UserAttributes.Builder()
+            .withEmail("brennan@segment.com")
+            .build();
+
+        verify(intercom).updateUser(isEqualToComparingFieldByFieldRecursively(expectedUserAttributes));
+    }
+
+    @Test
+    public void anonymousAttributesAreNotCachedForAUserNamedAnonymous() {
+        integration = integrationWithSettings(new ValueMap()
+            .putValue("sendChangedAttributesOnly", true));
+
+        integration.identify(new IdentifyPayloadBuilder()
+            .traits(new Traits()
+                .putName("Brennan"))
+            .build());
+        integration.identify(new IdentifyPayloadBuilder()
+            .traits(createTraits("anonymous")
+                .putName("Brennan"))
+            .build());
+
+        verify(intercom, times(2)).updateUser(any(UserAttributes.class));
+    }
+
+    @Test
+    public void identifyAttributeCacheSurvivesRestart() {
+        ValueMap settings = new ValueMap().putValue("sendChangedAttributesOnly", true);
+        Traits traits = createTraits("123")
+            .putName("Brennan");
+
+        integrationWithSettings(settings).identify(new IdentifyPayloadBuilder()
+            .traits(traits)
+            .build());
+        integrationWithSettings(settings).identify(new IdentifyPayloadBuilder()
+            .traits(traits)
+            .build());
+
+        verify(intercom, times(1)).updateUser(any(UserAttributes.class));
+    }
+
+    @Test
+    public void identifyAndGroupAreCoalescedUntilFlush() {
+        integration = integrationWithSettings(new ValueMap()
+            .putValue("coalesceWindowMillis", 60000L));
+
+        integration.identify(new IdentifyPayloadBuilder()
+            .traits(createTraits("123")
+                .putName("Brennan"))
+            .build());
+        integration.group(new GroupPayloadBuilder()
+            .groupId("456")
+            .groupTraits(new Traits().putValue("name", "Acme"))
+            .build());
+        integration.identify(new IdentifyPayloadBuilder()
+            .traits(createTraits("123")
+                .putName("Brennan")
+                .putEmail("testing@segment.com"))
+            .build());
+
+        verify(intercom, never()).updateUser(any(UserAttributes.class));
+
+        integration.flush();
+
+        Company expectedCompany = new Company.Builder()
+            .withCompanyId("456")
+            .withName("Acme")
+            .build();
+
+        UserAttributes expectedUserAttributes = new UserAttributes.Builder()
+            .withName("Brennan")
+            .withEmail("testing@segment.com")
+            .withCompany(expectedCompany)
+            .build();
+
+        verify(intercom).updateUser(isEqualToComparingFieldByFieldRecursively(expectedUserAttributes));
+    }
+
+    @Test
+    public void identifySameUserRegistersOnce() {
+        integration = integrationWithSettings(new ValueMap()
+            .putValue("skipRedundantRegistration", true));
+
+        integration.identify(new IdentifyPayloadBuilder()
+            .traits(createTraits("123"))
+            .build());
+        integration.identify(new IdentifyPayloadBuilder()
+            .traits(createTraits("123"))
+            .build());
+
+        verify(intercom, times(1)).registerIdentifiedUser(any(Registration.class));
+        verify(intercom, never()).logout();
+    }
+
+    @Test
+    public void identifyDifferentUserLogsOutFirst() {
+        integration = integrationWithSettings(new ValueMap()
+            .putValue("skipRedundantRegistration", true));
+
+        integration.identify(new IdentifyPayloadBuilder()
+            .traits(createTraits("123"))
+            .build());
+        integration.identify(new IdentifyPayloadBuilder()
+            .traits(createTraits("456"))
+            .options(new Options()
+                .setIntegrationOptions("Intercom", new ValueMap()
+                    .putValue("userHash", "789")
+                )
+            )
+            .build());
+
+        InOrder inOrder = inOrder(intercom);
+        inOrder.verify(intercom).logout();
+        inOrder.verify(intercom).setUserHash("789");
+        inOrder.verify(intercom).registerIdentifiedUser(
+            isEqualToComparingFieldByFieldRecursively(Registration.create().withUserId("456")));
+    }
+
+    @Test
+    public void resetWithoutRegisteredUserSkipsLogout() {
+        integration = integrationWithSettings(new ValueMap()
+            .putValue("skipRedundantRegistration", true));
+
+        integration.reset();
+        integration.reset();
+
+        verify(intercom, times(1)).logout();
+    }
+
     @Test
     public void trackWithCustomProperties() {
         Properties properties = new Properties();
@@ -275,6 +564,140 @@ public class IntercomTest {
         verify(intercom).logEvent("Order Completed", expectedProperties);
     }
 
+    @Test
+    public void trackPolicyDeniesAndRateLimits() {
+        integration = integrationWithSettings(new ValueMap()
+            .putValue("trackPolicy", new ValueMap()
+                .putValue("deny", Collections.singletonList("Debug *"))
+                .putValue("rateLimits", new ValueMap()
+                    .putValue("Scrolled *", new ValueMap()
+                        .putValue("perSecond", 0.001)
+                        .putValue("burst", 2)))));
+
+        integration.track(new TrackPayloadBuilder().event("Debug Tapped").build());
+        for (int i = 0; i < 5; i++) {
+            integration.track(new TrackPayloadBuilder().event("Scrolled 50%").build());
+        }
+        integration.track(new TrackPayloadBuilder().event("Signed Up").build());
+
+        verify(intercom, never()).logEvent("Debug Tapped");
+        verify(intercom, times(2)).logEvent("Scrolled 50%");
+        verify(intercom).logEvent("Signed Up");
+
+        Map<String, Long> suppressed = integration.getSuppressedTrackCounts();
+        assertThat(suppressed.get("Debug Tapped")).isEqualTo(1L);
+        assertThat(suppressed.get("Scrolled 50%")).isEqualTo(3L);
+        assertThat(suppressed).doesNotContainKey("Signed Up");
+    }
+
+    @Test
+    public void trackDispatchedAsync() {
+        integration = integrationWithSettings(new ValueMap()
+            .putValue("dispatchAsync", true));
+
+        integration.track(new TrackPayloadBuilder()
+            .event("Baz")
+            .build());
+
+        verify(intercom, timeout(1000)).logEvent("Baz");
+    }
+
+    @Test
+    public void fullQueueDropsTracksFirst() throws InterruptedException {
+        integration = integrationWithSettings(new ValueMap()
+            .putValue("dispatchAsync", true)
+            .putValue("dispatchQueueSize", 1)
+            .putValue("backpressurePolicy", "dropTracksFirst"));
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                started.countDown();
+                release.await();
+                return null;
+            }
+        }).when(intercom).logEvent("Blocker");
+
+        integration.track(new TrackPayloadBuilder().event("Blocker").build());
+        started.await();
+        integration.track(new TrackPayloadBuilder().event("Dropped").build());
+        integration.track(new TrackPayloadBuilder().event("Kept").build());
+
+        assertThat(integration.getDroppedCount()).isEqualTo(1);
+        assertThat(integration.getQueueDepth()).isEqualTo(1);
+
+        release.countDown();
+        verify(intercom, timeout(1000)).logEvent("Kept");
+        verify(intercom, never()).logEvent("Dropped");
+    }
+
+    @Test
+    public void fullQueueDropsOldestTracksButKeepsReset() throws InterruptedException {
+        integration = integrationWithSettings(new ValueMap()
+            .putValue("dispatchAsync", true)
+            .putValue("dispatchQueueSize", 2)
+            .putValue("backpressurePolicy", "dropOldest"));
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                started.countDown();
+                release.await();
+                return null;
+            }
+        }).when(intercom).logEvent("Blocker");
+
+        integration.track(new TrackPayloadBuilder().event("Blocker").build());
+        started.await();
+        integration.reset();
+        for (int i = 0; i < 5; i++) {
+            integration.track(new TrackPayloadBuilder().event("Event " + i).build());
+        }
+
+        assertThat(integration.getDroppedCount()).isEqualTo(4);
+        assertThat(integration.getQueueDepth()).isEqualTo(2);
+
+        release.countDown();
+        InOrder inOrder = inOrder(intercom);
+        inOrder.verify(intercom, timeout(1000)).logout();
+        inOrder.verify(intercom, timeout(1000)).logEvent("Event 4");
+        verify(intercom, never()).logEvent("Event 0");
+    }
+
+    @Test
+    public void flushWithTimeoutDoesNotWaitForAFullQueue() throws InterruptedException {
+        integration = integrationWithSettings(new ValueMap()
+            .putValue("dispatchAsync", true)
+            .putValue("dispatchQueueSize", 1));
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                started.countDown();
+                release.await();
+                return null;
+            }
+        }).when(intercom).logEvent("Blocker");
+
+        integration.track(new TrackPayloadBuilder().event("Blocker").build());
+        started.await();
+        integration.track(new TrackPayloadBuilder().event("Queued").build());
+
+        long start = System.nanoTime();
+        assertThat(integration.flush(100, TimeUnit.MILLISECONDS)).isFalse();
+        assertThat(System.nanoTime() - start).isLessThan(TimeUnit.SECONDS.toNanos(5));
+
+        release.countDown();
+        assertThat(integration.flush(5, TimeUnit.SECONDS)).isTrue();
+        verify(intercom).logEvent("Queued");
+    }
+
     @Test
     public void groupWithSpeccedAttributes() {
         long createdAt = 123344L;
@@ -332,12 +755,886 @@ public class IntercomTest {
         verify(intercom).updateUser(isEqualToComparingFieldByFieldRecursively(expectedUserAttributes));
     }
 
+    @Test
+    public void groupSkipsUnchangedCompanyFields() {
+        integration = integrationWithSettings(new ValueMap()
+            .putValue("skipUnchangedCompanies", true));
+
+        Traits traits = new Traits();
+        traits.put("name", "Acme");
+        traits.put("plan", "startup");
+        integration.group(new GroupPayloadBuilder()
+            .groupId("123")
+            .groupTraits(traits)
+            .build());
+        integration.group(new GroupPayloadBuilder()
+            .groupId("123")
+            .groupTraits(traits)
+            .build());
+        traits.put("plan", "enterprise");
+        integration.group(new GroupPayloadBuilder()
+            .groupId("123")
+            .groupTraits(traits)
+            .build());
+        integration.reset();
+        integration.group(new GroupPayloadBuilder()
+            .groupId("123")
+            .groupTraits(traits)
+            .build());
+
+        UserAttributes full = new UserAttributes.Builder()
+            .withCompany(new Company.Builder()
+                .withCompanyId("123")
+                .withName("Acme")
+                .withPlan("startup")
+                .build())
+            .build();
+        UserAttributes changed = new UserAttributes.Builder()
+            .withCompany(new Company.Builder()
+                .withCompanyId("123")
+                .withPlan("enterprise")
+                .build())
+            .build();
+        UserAttributes afterReset = new UserAttributes.Builder()
+            .withCompany(new Company.Builder()
+                .withCompanyId("123")
+                .withName("Acme")
+                .withPlan("enterprise")
+                .build())
+            .build();
+        InOrder inOrder = inOrder(intercom);
+        inOrder.verify(intercom).updateUser(isEqualToComparingFieldByFieldRecursively(full));
+        inOrder.verify(intercom).updateUser(isEqualToComparingFieldByFieldRecursively(changed));
+        inOrder.verify(intercom).logout();
+        inOrder.verify(intercom).updateUser(isEqualToComparingFieldByFieldRecursively(afterReset));
+        verify(intercom, times(3)).updateUser(any(UserAttributes.class));
+    }
+
     @Test
     public void reset() {
         integration.reset();
         verify(intercom).logout();
     }
 
+    @Test
+    public void metricsRecordPayloadsSdkCallsAndDroppedValues() {
+        PowerMockito.mockStatic(Intercom.class);
+        IntercomMetrics metrics = new IntercomMetrics();
+        integration = new IntercomIntegration(mockProvider, IntercomIntegration.Initializer.REAL,
+            application,
+            new ValueMap()
+                .putValue("mobileApiKey", "123")
+                .putValue("appId", "123")
+                .putValue("trackPolicy", new ValueMap()
+                    .putValue("deny", Collections.singletonList("Debug"))),
+            Logger.with(VERBOSE), metrics);
+
+        integration.track(new TrackPayloadBuilder()
+            .event("Baz")
+            .properties(new Properties()
+                .putValue("foo", "bar")
+                .putValue("nested", new HashMap<String, Object>()))
+            .build());
+        integration.track(new TrackPayloadBuilder()
+            .event("Debug")
+            .build());
+        integration.reset();
+
+        assertThat(metrics.latency(Operation.TRACK).count()).isEqualTo(1);
+        assertThat(metrics.latency(Operation.RESET).count()).isEqualTo(1);
+        assertThat(metrics.sdkLatency(SdkCall.LOG_EVENT).count()).isEqualTo(1);
+        assertThat(metrics.sdkLatency(SdkCall.LOGOUT).count()).isEqualTo(1);
+        assertThat(metrics.skipped(SdkCall.LOG_EVENT)).isEqualTo(1);
+        assertThat(metrics.nestedValuesDropped()).isEqualTo(1);
+    }
+
+    @Test
+    public void limitsTruncateAndDropValuesOverBudget() {
+        PowerMockito.mockStatic(Intercom.class);
+        IntercomMetrics metrics = new IntercomMetrics();
+        integration = new IntercomIntegration(mockProvider, IntercomIntegration.Initializer.REAL,
+            RuntimeEnvironment.application,
+            new ValueMap()
+                .putValue("mobileApiKey", "123")
+                .putValue("appId", "123")
+                .putValue("limits", new ValueMap()
+                    .putValue("maxCustomAttributes", 1)
+                    .putValue("maxStringLength", 5)
+                    .putValue("maxEventMetadataKeys", 2)
+                    .putValue("maxEventNames", 1)),
+            Logger.with(VERBOSE), metrics);
+
+        integration.identify(new IdentifyPayloadBuilder()
+            .traits(createTraits("123")
+                .putName("Brennan Lee")
+                .putValue("plan", "enterprise")
+                .putValue("seats", 10))
+            .build());
+        integration.track(new TrackPayloadBuilder()
+            .event("Foo")
+            .properties(new Properties()
+                .putValue("a", "abcdefgh")
+                .putValue("b", 2)
+                .putValue("c", 3))
+            .build());
+        integration.track(new TrackPayloadBuilder()
+            .event("Bar")
+            .build());
+
+        UserAttributes expected = new UserAttributes.Builder()
+            .withName("Brenn")
+            .withCustomAttribute("plan", "enter")
+            .build();
+        verify(intercom).updateUser(isEqualToComparingFieldByFieldRecursively(expected));
+        Map<String, Object> metadata = new LinkedHashMap<>();
+        metadata.put("a", "abcde");
+        metadata.put("b", 2);
+        verify(intercom).logEvent("Foo", metadata);
+        verify(intercom, never()).logEvent("Bar");
+        assertThat(metrics.limitExceeded(Limit.STRING_LENGTH)).isEqualTo(3);
+        assertThat(metrics.limitExceeded(Limit.CUSTOM_ATTRIBUTES)).isEqualTo(1);
+        assertThat(metrics.limitExceeded(Limit.EVENT_METADATA_KEYS)).isEqualTo(1);
+        assertThat(metrics.limitExceeded(Limit.EVENT_NAMES)).isEqualTo(1);
+    }
+
+    @Test
+    public void limitsDropIdentifiersInsteadOfTruncatingThem() {
+        PowerMockito.mockStatic(Intercom.class);
+        IntercomMetrics metrics = new IntercomMetrics();
+        integration = new IntercomIntegration(mockProvider, IntercomIntegration.Initializer.REAL,
+            RuntimeEnvironment.application,
+            new ValueMap()
+                .putValue("mobileApiKey", "123")
+                .putValue("appId", "123")
+                .putValue("limits", new ValueMap()
+                    .putValue("maxStringLength", 5)),
+            Logger.with(VERBOSE), metrics);
+        Map<String, Object> company = new HashMap<>();
+        company.put("id", "company-456");
+        company.put("name", "Acme");
+
+        integration.identify(new IdentifyPayloadBuilder()
+            .traits(createTraits("123")
+                .putEmail("brennan@segment.com")
+                .putName("Brennan")
+                .putValue("company", company))
+            .build());
+
+        UserAttributes expected = new UserAttributes.Builder()
+            .withName("Brenn")
+            .build();
+        verify(intercom).updateUser(isEqualToComparingFieldByFieldRecursively(expected));
+        assertThat(metrics.limitExceeded(Limit.STRING_LENGTH)).isEqualTo(3);
+    }
+
+    @Test
+    public void openCircuitShedsEventsAndUpdates() {
+        PowerMockito.mockStatic(Intercom.class);
+        doThrow(new IllegalStateException("storage full")).when(intercom).logEvent("Boom");
+        IntercomMetrics metrics = new IntercomMetrics();
+        integration = new IntercomIntegration(mockProvider, IntercomIntegration.Initializer.REAL,
+            RuntimeEnvironment.application,
+            new ValueMap()
+                .putValue("mobileApiKey", "123")
+                .putValue("appId", "123")
+                .putValue("circuitBreaker", new ValueMap()
+                    .putValue("failureThreshold", 2)
+                    .putValue("openMillis", 60000)),
+            Logger.with(VERBOSE), metrics);
+
+        // Failures are dropped instead of propagating into Segment's dispatch loop.
+        integration.track(new TrackPayloadBuilder().event("Boom").build());
+        integration.track(new TrackPayloadBuilder().event("Boom").build());
+        integration.track(new TrackPayloadBuilder().event("Foo").build());
+        integration.identify(new IdentifyPayloadBuilder()
+            .traits(createTraits("123").putName("Brennan"))
+            .build());
+        // The registration succeeded, but it isn't guarded, so the circuit is still open.
+        integration.track(new TrackPayloadBuilder().event("Qux").build());
+
+        verify(intercom, times(2)).logEvent("Boom");
+        verify(intercom, never()).logEvent("Foo");
+        verify(intercom, never()).logEvent("Qux");
+        verify(intercom).registerIdentifiedUser(any(Registration.class));
+        verify(intercom, never()).updateUser(any(UserAttributes.class));
+        assertThat(metrics.skipped(SdkCall.LOG_EVENT)).isEqualTo(4);
+        assertThat(metrics.skipped(SdkCall.UPDATE_USER)).isEqualTo(1);
+    }
+
+    @Test
+    public void eventNamesOverBudgetAreBucketedAcrossLaunches() {
+        PowerMockito.mockStatic(Intercom.class);
+        IntercomMetrics metrics = new IntercomMetrics();
+        ValueMap settings = new ValueMap()
+            .putValue("mobileApiKey", "123")
+            .putValue("appId", "123")
+            .putValue("limits", new ValueMap()
+                .putValue("maxEventNames", 2)
+                .putValue("overflowEventName", "Other Event"));
+        integration = new IntercomIntegration(mockProvider, IntercomIntegration.Initializer.REAL,
+            RuntimeEnvironment.application, settings, Logger.with(VERBOSE), metrics);
+
+        integration.track(new TrackPayloadBuilder().event("Foo").build());
+        integration.track(new TrackPayloadBuilder().event("Bar").build());
+
+        integration = new IntercomIntegration(mockProvider, IntercomIntegration.Initializer.REAL,
+            RuntimeEnvironment.application, settings, Logger.with(VERBOSE), metrics);
+
+        integration.track(new TrackPayloadBuilder().event("Bar").build());
+        integration.track(new TrackPayloadBuilder().event("Item 42").build());
+        integration.track(new TrackPayloadBuilder().event("Item 43").build());
+
+        verify(intercom).logEvent("Foo");
+        verify(intercom, times(2)).logEvent("Bar");
+        Map<String, Object> metadata = new LinkedHashMap<>();
+        metadata.put("originalEventName", "Item 42");
+        verify(intercom).logEvent("Other Event", metadata);
+        metadata.put("originalEventName", "Item 43");
+        verify(intercom).logEvent("Other Event", metadata);
+        verify(intercom, never()).logEvent("Item 42");
+        assertThat(metrics.limitExceeded(Limit.EVENT_NAMES)).isEqualTo(2);
+    }
+
+    @Test
+    public void pushTokenIsSentOncePerUserAndToken() {
+        PowerMockito.mockStatic(Intercom.class);
+        IntercomIntegration.PushClient pushClient = mock(IntercomIntegration.PushClient.class);
+        integration = new IntercomIntegration(mockProvider, IntercomIntegration.Initializer.REAL,
+            RuntimeEnvironment.application,
+            new ValueMap()
+                .putValue("mobileApiKey", "123")
+                .putValue("appId", "123")
+                .putValue("sendPushTokens", true),
+            Logger.with(VERBOSE), IntercomIntegration.MetricsListener.NONE, pushClient);
+
+        integration.identify(identifyWithPushToken("123", "token1"));
+        integration.identify(identifyWithPushToken("123", "token1"));
+        integration.identify(identifyWithPushToken("123", "token2"));
+        integration.reset();
+        integration.identify(identifyWithPushToken("123", "token2"));
+
+        verify(pushClient).sendTokenToIntercom(RuntimeEnvironment.application, "token1");
+        verify(pushClient, times(2)).sendTokenToIntercom(RuntimeEnvironment.application, "token2");
+    }
+
+    @Test
+    public void concurrentCallsKeepOrderAndConsistency() throws Exception {
+        final int threads = 4;
+        final int callsPerThread = 200;
+        final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+        final Intercom recording = mock(Intercom.class, new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                String call = invocation.getMethod().getName();
+                if (call.equals("registerIdentifiedUser")) {
+                    call += " " + ((Registration) invocation.getArguments()[0]).getUserId();
+                } else if (call.equals("logEvent")) {
+                    Object[] arguments = invocation.getArguments();
+                    call += " " + arguments[0];
+                    if (arguments.length > 1) {
+                        call += " " + ((Map<?, ?>) arguments[1]).get("n");
+                    }
+                }
+                calls.add(call);
+                return null;
+            }
+        });
+        IntercomMetrics metrics = new IntercomMetrics();
+        integration = new IntercomIntegration(
+            new IntercomIntegration.Provider() {
+                @Override
+                public Intercom get() {
+                    return recording;
+                }
+            },
+            new IntercomIntegration.Initializer() {
+                @Override
+                public void initialize(Application application, String mobileApiKey,
+                    String appId) {
+                }
+            },
+            RuntimeEnvironment.application,
+            new ValueMap()
+                .putValue("mobileApiKey", "123")
+                .putValue("appId", "123")
+                .putValue("skipRedundantRegistration", true)
+                .putValue("sendChangedAttributesOnly", true)
+                .putValue("skipUnchangedCompanies", true)
+                .putValue("limits", new ValueMap())
+                .putValue("screens", new ValueMap().putValue("dedupWindowMillis", 0)),
+            Logger.with(VERBOSE), metrics);
+
+        // Payloads are handled inline on each calling thread, so the lock-free paths race.
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> producers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            producers.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        throw new AssertionError(e);
+                    }
+                    for (int i = 0; i < callsPerThread; i++) {
+                        if (i % 50 == 0) {
+                            integration.identify(new IdentifyPayload.Builder()
+                                .userId("user" + thread + "-" + i)
+                                .traits(new Traits().putName("User " + thread)
+                                    .putValue("company", new ValueMap().putValue("id", "c" + i)))
+                                .build());
+                        } else if (i % 2 == 1) {
+                            integration.track(new TrackPayloadBuilder()
+                                .event("Event " + thread)
+                                .properties(new Properties().putValue("n", i))
+                                .build());
+                        } else if (i % 10 == 2) {
+                            integration.screen(new ScreenPayloadBuilder()
+                                .name("Screen " + thread)
+                                .build());
+                        } else {
+                            integration.group(new GroupPayloadBuilder()
+                                .groupId("g" + i % 5)
+                                .groupTraits(new Traits().putValue("plan", "p" + i % 3))
+                                .build());
+                        }
+                    }
+                }
+            });
+        }
+        // Like an app resetting and reaching for the client from the UI thread.
+        producers.add(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                for (int i = 0; i < 20; i++) {
+                    assertThat(integration.getUnderlyingInstance()).isSameAs(recording);
+                    integration.reset();
+                }
+            }
+        });
+        for (Thread producer : producers) {
+            producer.start();
+        }
+        start.countDown();
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        // The registration published last must be the one the SDK calls left behind.
+        String registeredUser = null;
+        for (String call : calls) {
+            if (call.startsWith("registerIdentifiedUser ")) {
+                registeredUser = call.substring("registerIdentifiedUser ".length());
+            } else if (call.equals("logout")) {
+                registeredUser = null;
+            }
+        }
+        JSONObject registration = new JSONObject(RuntimeEnvironment.application
+            .getSharedPreferences("analytics-android-intercom", Context.MODE_PRIVATE)
+            .getString("registration", null));
+        if (registeredUser == null) {
+            assertThat(registration.getString("kind")).isEqualTo("NONE");
+        } else {
+            assertThat(registration.getString("kind")).isEqualTo("IDENTIFIED");
+            assertThat(registration.getString("userId")).isEqualTo(registeredUser);
+        }
+
+        integration.reset();
+        assertThat(integration.flush(10, TimeUnit.SECONDS)).isTrue();
+
+        List<String> recorded = new ArrayList<>(calls);
+        int[] lastTrack = new int[threads];
+        int[] tracks = new int[threads];
+        int[] screens = new int[threads];
+        Arrays.fill(lastTrack, -1);
+        boolean registered = false;
+        for (String call : recorded) {
+            if (call.startsWith("registerIdentifiedUser ")) {
+                // Another user may only be registered after logging out the previous one.
+                assertThat(registered).isFalse();
+                registered = true;
+            } else if (call.equals("logout")) {
+                registered = false;
+            } else if (call.startsWith("logEvent Event ")) {
+                String[] parts = call.split(" ");
+                int thread = Integer.parseInt(parts[2]);
+                int n = Integer.parseInt(parts[3]);
+                assertThat(n).isGreaterThan(lastTrack[thread]);
+                lastTrack[thread] = n;
+                tracks[thread]++;
+            } else if (call.startsWith("logEvent Viewed Screen ")) {
+                screens[Integer.parseInt(call.substring("logEvent Viewed Screen ".length(),
+                    call.length() - " Screen".length()))]++;
+            }
+        }
+        for (int t = 0; t < threads; t++) {
+            assertThat(tracks[t]).isEqualTo(callsPerThread / 2);
+            assertThat(screens[t]).isEqualTo(callsPerThread / 10);
+        }
+        assertThat(recorded.get(recorded.size() - 1)).isEqualTo("logout");
+        assertThat(metrics.latency(Operation.TRACK).count())
+            .isEqualTo(threads * callsPerThread / 2);
+    }
+
+    @Test
+    public void metricsHistogramPercentiles() {
+        IntercomMetrics metrics = new IntercomMetrics();
+        for (int i = 1; i <= 1000; i++) {
+            metrics.onOperation(Operation.IDENTIFY, i);
+        }
+
+        IntercomMetrics.Histogram histogram = metrics.latency(Operation.IDENTIFY);
+        assertThat(histogram.count()).isEqualTo(1000);
+        assertThat(histogram.maxNanos()).isEqualTo(1000);
+        assertThat(histogram.meanNanos()).isEqualTo(500);
+        assertThat(histogram.percentileNanos(50)).isBetween(500L, 625L);
+        assertThat(histogram.percentileNanos(99)).isBetween(990L, 1000L);
+        assertThat(metrics.latency(Operation.GROUP).percentileNanos(50)).isEqualTo(0);
+    }
+
+    @Test
+    public void journaledEventIsReplayedAfterRestart() {
+        final Intercom failing = PowerMockito.mock(Intercom.class);
+        doThrow(new IllegalStateException("storage full")).when(failing).logEvent("Baz");
+        PowerMockito.mockStatic(Intercom.class);
+        IntercomIntegration crashing = new IntercomIntegration(new IntercomIntegration.Provider() {
+            @Override
+            public Intercom get() {
+                return failing;
+            }
+        }, RuntimeEnvironment.application, new ValueMap()
+            .putValue("mobileApiKey", "123")
+            .putValue("appId", "123")
+            .putValue("journal", true),
+            Logger.with(VERBOSE));
+        try {
+            crashing.track(new TrackPayloadBuilder()
+                .event("Baz")
+                .build());
+        } catch (IllegalStateException expected) {
+        }
+
+        integrationWithSettings(new ValueMap().putValue("journal", true));
+
+        verify(intercom).logEvent("Baz");
+    }
+
+    @Test
+    public void journaledCallThatKeepsThrowingIsDroppedAfterRetries() {
+        doThrow(new IllegalStateException("storage full")).when(intercom).logEvent("Boom");
+        PowerMockito.mockStatic(Intercom.class);
+        IntercomMetrics metrics = new IntercomMetrics();
+        integration = new IntercomIntegration(mockProvider, IntercomIntegration.Initializer.REAL,
+            RuntimeEnvironment.application,
+            new ValueMap()
+                .putValue("mobileApiKey", "123")
+                .putValue("appId", "123")
+                .putValue("journal", true),
+            Logger.with(VERBOSE), metrics);
+
+        for (String event : Arrays.asList("Boom", "Foo", "Bar")) {
+            try {
+                integration.track(new TrackPayloadBuilder()
+                    .event(event)
+                    .build());
+            } catch (IllegalStateException expected) {
+            }
+        }
+
+        verify(intercom, times(3)).logEvent("Boom");
+        InOrder inOrder = inOrder(intercom);
+        inOrder.verify(intercom).logEvent("Foo");
+        inOrder.verify(intercom).logEvent("Bar");
+        assertThat(metrics.skipped(SdkCall.LOG_EVENT)).isEqualTo(1);
+
+        integrationWithSettings(new ValueMap().putValue("journal", true));
+
+        verify(intercom, times(3)).logEvent("Boom");
+    }
+
+    @Test
+    public void journaledCallsAreNotMadeWhileHoldingTheLock() throws InterruptedException {
+        integration = integrationWithSettings(new ValueMap().putValue("journal", true));
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws InterruptedException {
+                entered.countDown();
+                release.await();
+                return null;
+            }
+        }).when(intercom).logEvent("Slow");
+
+        Thread slow = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                integration.track(new TrackPayloadBuilder()
+                    .event("Slow")
+                    .build());
+            }
+        });
+        slow.start();
+        assertThat(entered.await(5, TimeUnit.SECONDS)).isTrue();
+
+        // Queued behind the slow call without waiting for it.
+        integration.track(new TrackPayloadBuilder()
+            .event("Fast")
+            .build());
+        verify(intercom, never()).logEvent("Fast");
+
+        release.countDown();
+        slow.join(5000);
+        verify(intercom).logEvent("Fast");
+    }
+
+    @Test
+    public void journaledEventsAfterResetWaitForRegistration() {
+        integration = integrationWithSettings(new ValueMap().putValue("journal", true));
+
+        integration.reset();
+        integration.track(new TrackPayloadBuilder()
+            .event("Baz")
+            .build());
+        integration.identify(new IdentifyPayloadBuilder()
+            .traits(createTraits("123"))
+            .build());
+
+        InOrder inOrder = inOrder(intercom);
+        inOrder.verify(intercom).logout();
+        inOrder.verify(intercom).registerIdentifiedUser(any(Registration.class));
+        inOrder.verify(intercom).logEvent("Baz");
+    }
+
+    @Test
+    public void identifyNormalizesAttributeKeysAndValues() {
+        integration = integrationWithSettings(new ValueMap()
+            .putValue("normalizeAttributes", true));
+
+        integration.identify(new IdentifyPayloadBuilder()
+            .traits(createTraits("123")
+                .putValue("plan.name", "pro")
+                .putValue("lastSeen", new Date(1500000000123L))
+                .putValue("balance", new BigDecimal("12.50")))
+            .build());
+
+        UserAttributes expected = new UserAttributes.Builder()
+            .withCustomAttribute("plan_name", "pro")
+            .withCustomAttribute("lastSeen", 1500000000L)
+            .withCustomAttribute("balance", 12.5)
+            .build();
+        verify(intercom).updateUser(isEqualToComparingFieldByFieldRecursively(expected));
+    }
+
+    @Test
+    public void trackNormalizesMetadataKeys() {
+        integration = integrationWithSettings(new ValueMap()
+            .putValue("normalizeAttributes", true));
+
+        integration.track(new TrackPayloadBuilder()
+            .event("Baz")
+            .properties(new Properties()
+                .putValue("$price.band", 3)
+                .putValue("a.b", 1)
+                .putValue("a_b", 2))
+            .build());
+
+        // Keys that collide once sanitized keep the first value.
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("_price_band", 3);
+        expected.put("a_b", 1);
+        verify(intercom).logEvent("Baz", expected);
+    }
+
+    @Test
+    public void trackFlattensNestedPropertiesAndSummarizesProducts() {
+        integration = integrationWithSettings(new ValueMap()
+            .putValue("flattenNestedValues", new ValueMap().putValue("maxDepth", 1)));
+
+        List<Map<String, Object>> products = new ArrayList<>();
+        products.add(new ValueMap().putValue("sku", "a").putValue("price", 1.5));
+        products.add(new ValueMap().putValue("sku", "b").putValue("price", 2.5));
+        integration.track(new TrackPayloadBuilder()
+            .event("Order Completed")
+            .properties(new Properties()
+                .putValue("store", new ValueMap()
+                    .putValue("city", "SF")
+                    .putValue("geo", new ValueMap().putValue("lat", 37)))
+                .putValue("coupons", Arrays.asList("x", "y"))
+                .putValue("products", products))
+            .build());
+
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("store.city", "SF");
+        expected.put("coupons.0", "x");
+        expected.put("coupons.1", "y");
+        expected.put("products.count", 2);
+        expected.put("products.price", 4.0);
+        verify(intercom).logEvent("Order Completed", expected);
+    }
+
+    @Test
+    public void identifyFlattensNestedTraitsWithinKeyLimit() {
+        PowerMockito.mockStatic(Intercom.class);
+        IntercomMetrics metrics = new IntercomMetrics();
+        integration = new IntercomIntegration(mockProvider, IntercomIntegration.Initializer.REAL,
+            RuntimeEnvironment.application,
+            new ValueMap()
+                .putValue("mobileApiKey", "123")
+                .putValue("appId", "123")
+                .putValue("flattenNestedValues", new ValueMap().putValue("maxKeys", 1)),
+            Logger.with(VERBOSE), metrics);
+
+        integration.identify(new IdentifyPayloadBuilder()
+            .traits(createTraits("123")
+                .putValue("address", new ValueMap()
+                    .putValue("city", "SF")
+                    .putValue("state", "CA")))
+            .build());
+
+        UserAttributes expected = new UserAttributes.Builder()
+            .withCustomAttribute("address.city", "SF")
+            .build();
+        verify(intercom).updateUser(isEqualToComparingFieldByFieldRecursively(expected));
+        assertThat(metrics.nestedValuesDropped()).isEqualTo(1);
+    }
+
+    @Test
+    public void flatteningAWideValueOnlyVisitsWhatFitsTheBudget() {
+        PowerMockito.mockStatic(Intercom.class);
+        IntercomMetrics metrics = new IntercomMetrics();
+        integration = new IntercomIntegration(mockProvider, IntercomIntegration.Initializer.REAL,
+            RuntimeEnvironment.application,
+            new ValueMap()
+                .putValue("mobileApiKey", "123")
+                .putValue("appId", "123")
+                .putValue("flattenNestedValues", new ValueMap().putValue("maxKeys", 3)),
+            Logger.with(VERBOSE), metrics);
+        final int[] visited = new int[1];
+        List<Object> wide = new AbstractList<Object>() {
+            @Override
+            public Object get(int index) {
+                visited[0]++;
+                return index % 2 == 0 ? "v" + index : Collections.singletonMap("k", index);
+            }
+
+            @Override
+            public int size() {
+                return 1000000;
+            }
+        };
+
+        integration.track(new TrackPayloadBuilder()
+            .event("Wide")
+            .properties(new Properties().putValue("wide", wide))
+            .build());
+
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("wide.0", "v0");
+        expected.put("wide.1.k", 1);
+        expected.put("wide.2", "v2");
+        verify(intercom).logEvent("Wide", expected);
+        assertThat(visited[0]).isEqualTo(3);
+        assertThat(metrics.nestedValuesDropped()).isEqualTo(1000000 - 3);
+    }
+
+    @Test
+    public void identifyWithMappedTraits() {
+        integration = integrationWithSettings(new ValueMap()
+            .putValue("mapping", new ValueMap()
+                .putValue("traits", new ValueMap()
+                    .putValue("fullName", "name")
+                    .putValue("tier", "plan_tier")
+                    .putValue("debug", ""))));
+
+        integration.identify(new IdentifyPayloadBuilder()
+            .traits(createTraits("123")
+                .putValue("fullName", "Brennan")
+                .putValue("tier", "gold")
+                .putValue("debug", true))
+            .build());
+
+        UserAttributes expected = new UserAttributes.Builder()
+            .withName("Brennan")
+            .withCustomAttribute("plan_tier", "gold")
+            .build();
+        verify(intercom).updateUser(isEqualToComparingFieldByFieldRecursively(expected));
+    }
+
+    @Test
+    public void trackWithMappedRevenueAndProperties() {
+        integration = integrationWithSettings(new ValueMap()
+            .putValue("mapping", new ValueMap()
+                .putValue("properties", new ValueMap().putValue("orderId", "order_id"))
+                .putValue("revenue", Arrays.asList("value", "revenue"))));
+
+        integration.track(new TrackPayloadBuilder()
+            .event("Order Completed")
+            .properties(new Properties()
+                .putValue("orderId", "A1")
+                .putValue("value", 20.0)
+                .putValue("revenue", 10.0)
+                .putValue("currency", "USD"))
+            .build());
+
+        Map<String, Object> price = new HashMap<>();
+        price.put("amount", 2000);
+        price.put("currency", "USD");
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("order_id", "A1");
+        expected.put("revenue", 10.0);
+        expected.put("price", price);
+        verify(intercom).logEvent("Order Completed", expected);
+    }
+
+    @Test
+    public void traceKeepsMostRecentCalls() {
+        integration = integrationWithSettings(new ValueMap()
+            .putValue("traceCapacity", 2)
+            .putValue("trackPolicy", new ValueMap()
+                .putValue("deny", Collections.singletonList("Debug"))));
+
+        integration.track(new TrackPayloadBuilder().event("First").build());
+        integration.track(new TrackPayloadBuilder()
+            .event("Second")
+            .properties(new Properties().putValue("foo", "bar"))
+            .build());
+        integration.track(new TrackPayloadBuilder().event("Debug").build());
+
+        String[] lines = integration.dumpTrace().split("\n");
+        assertThat(lines).hasSize(2);
+        assertThat(lines[0]).contains("LOG_EVENT Second attributes=1");
+        assertThat(lines[1]).endsWith("LOG_EVENT Debug attributes=0 skipped");
+    }
+
+    @Test
+    public void aggregatedEventsAreRolledUpUntilFlush() {
+        integration = integrationWithSettings(new ValueMap()
+            .putValue("aggregateEvents", new ValueMap()
+                .putValue("events", Collections.singletonList("Viewed Article"))));
+
+        for (int i = 0; i < 3; i++) {
+            integration.track(new TrackPayloadBuilder()
+                .event("Viewed Article")
+                .properties(new Properties()
+                    .putValue("words", 100)
+                    .putValue("revenue", 1.0)
+                    .putValue("title", "Hello"))
+                .build());
+        }
+        integration.track(new TrackPayloadBuilder().event("Signed Up").build());
+
+        verify(intercom).logEvent("Signed Up");
+        verify(intercom, never()).logEvent(eq("Viewed Article"), any(Map.class));
+
+        integration.flush();
+
+        Map<String, Object> price = new HashMap<>();
+        price.put("amount", 300L);
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("count", 3L);
+        expected.put("words_sum", 300L);
+        expected.put("price", price);
+        verify(intercom).logEvent("Viewed Article", expected);
+    }
+
+    @Test
+    public void aggregationIntervalsCloseOnTheDispatcher() {
+        integration = integrationWithSettings(new ValueMap()
+            .putValue("dispatchAsync", true)
+            .putValue("aggregateEvents", new ValueMap()
+                .putValue("events", Collections.singletonList("Viewed Article"))
+                .putValue("intervalMillis", 1)));
+        final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                threads.add(Thread.currentThread().getName());
+                return null;
+            }
+        }).when(intercom).logEvent(eq("Viewed Article"), any(Map.class));
+
+        integration.track(new TrackPayloadBuilder().event("Viewed Article").build());
+
+        verify(intercom, timeout(5000))
+            .logEvent("Viewed Article", Collections.<String, Object>singletonMap("count", 1L));
+        assertThat(threads).containsExactly("Segment-Intercom-Dispatcher");
+    }
+
+    @Test
+    public void flushWithTimeoutDrainsBufferedWork() {
+        integration = integrationWithSettings(new ValueMap()
+            .putValue("dispatchAsync", true)
+            .putValue("coalesceWindowMillis", 60000)
+            .putValue("aggregateEvents", new ValueMap()
+                .putValue("events", Collections.singletonList("Viewed Article"))));
+
+        integration.identify(new IdentifyPayloadBuilder()
+            .traits(createTraits("123").putName("Brennan"))
+            .build());
+        integration.track(new TrackPayloadBuilder().event("Viewed Article").build());
+
+        assertThat(integration.flush(5, TimeUnit.SECONDS)).isTrue();
+
+        UserAttributes expected = new UserAttributes.Builder()
+            .withName("Brennan")
+            .build();
+        verify(intercom).updateUser(isEqualToComparingFieldByFieldRecursively(expected));
+        verify(intercom).logEvent("Viewed Article", Collections.<String, Object>singletonMap("count", 1L));
+    }
+
+    @Test
+    public void screenIsLoggedOnceWithinDedupWindow() {
+        integration = integrationWithSettings(new ValueMap()
+            .putValue("screens", new ValueMap()
+                .putValue("eventName", "Viewed {name}")
+                .putValue("dedupWindowMillis", 60000)
+                .putValue("deny", Collections.singletonList("Debug*"))));
+
+        integration.screen(new ScreenPayloadBuilder().name("Home").build());
+        integration.screen(new ScreenPayloadBuilder().name("Home").build());
+        integration.screen(new ScreenPayloadBuilder().name("Debug Menu").build());
+        integration.screen(new ScreenPayloadBuilder()
+            .name("Checkout")
+            .properties(new Properties().putValue("step", 2))
+            .build());
+
+        verify(intercom).logEvent("Viewed Home");
+        verify(intercom, never()).logEvent("Viewed Debug Menu");
+        verify(intercom).logEvent("Viewed Checkout",
+            Collections.<String, Object>singletonMap("step", 2));
+    }
+
+    @Test
+    public void screenIsIgnoredByDefault() {
+        integration.screen(new ScreenPayloadBuilder().name("Home").build());
+
+        verify(intercom, never()).logEvent(any(String.class));
+    }
+
+    private static IdentifyPayload identifyWithPushToken(String userId, String token) {
+        return new IdentifyPayload.Builder()
+            .userId(userId)
+            .context(Collections.singletonMap("device",
+                Collections.singletonMap("token", token)))
+            .build();
+    }
+
+    private IntercomIntegration integrationWithSettings(ValueMap settings) {
+        PowerMockito.mockStatic(Intercom.class);
+        return new IntercomIntegration(mockProvider, RuntimeEnvironment.application,
+            settings
+                .putValue("mobileApiKey", "123")
+                .putValue("appId", "123"),
+            Logger.with(VERBOSE));
+    }
+
     private static <T> T isEqualToComparingFieldByFieldRecursively(final T expected) {
         return argThat(new AssertionMatcher<T>(){
             @Override
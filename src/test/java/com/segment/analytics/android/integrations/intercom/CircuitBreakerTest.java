@@ -0,0 +1,110 @@
+package com.segment.analytics.android.integrations.intercom;
+
+import android.app.Application;
+import com.segment.analytics.android.integrations.intercom.IntercomIntegration.MetricsListener.SdkCall;
+import com.segment.analytics.core.tests.BuildConfig;
+import com.segment.analytics.integrations.Logger;
+import io.intercom.android.sdk.Intercom;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static com.segment.analytics.Analytics.LogLevel.VERBOSE;
+import static org.assertj.core.api.Java6Assertions.assertThat;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class CircuitBreakerTest {
+    @Mock Intercom intercom;
+    private final IntercomMetrics metrics = new IntercomMetrics();
+    private long now = 1000;
+    private IntercomSdk sdk;
+
+    @Before
+    public void setUp() {
+        initMocks(this);
+        doThrow(new IllegalStateException("storage full")).when(intercom).logEvent("Boom");
+        Logger logger = Logger.with(VERBOSE);
+        IntercomInitializer initializer = new IntercomInitializer(
+            IntercomInitializer.Mode.EAGER,
+            RuntimeEnvironment.application,
+            "123",
+            "123",
+            new IntercomIntegration.Initializer() {
+                @Override
+                public void initialize(Application application, String mobileApiKey, String appId) {
+                }
+            },
+            new IntercomIntegration.Provider() {
+                @Override
+                public Intercom get() {
+                    return intercom;
+                }
+            },
+            null,
+            logger);
+        CircuitBreaker breaker = new CircuitBreaker(2, TimeUnit.SECONDS.toNanos(1),
+            TimeUnit.MILLISECONDS.toNanos(200), logger, new Clock() {
+                @Override
+                public long nanoTime() {
+                    return now;
+                }
+            });
+        sdk = new IntercomSdk(initializer, metrics, logger, null, null, breaker);
+    }
+
+    @Test
+    public void openCircuitShedsEventsUntilAProbeSucceeds() {
+        sdk.logEvent("Boom", null);
+        sdk.logEvent("Boom", null);
+        sdk.logEvent("Foo", null);
+        advanceMillis(199);
+        sdk.logEvent("Qux", null);
+
+        verify(intercom, times(2)).logEvent("Boom");
+        verify(intercom, never()).logEvent("Foo");
+        verify(intercom, never()).logEvent("Qux");
+        assertThat(metrics.skipped(SdkCall.LOG_EVENT)).isEqualTo(4);
+
+        advanceMillis(1);
+        sdk.logEvent("Bar", null);
+        sdk.logEvent("Baz", null);
+
+        verify(intercom).logEvent("Bar");
+        verify(intercom).logEvent("Baz");
+    }
+
+    @Test
+    public void failedProbeKeepsTheCircuitOpenForAnotherPeriod() {
+        sdk.logEvent("Boom", null);
+        sdk.logEvent("Boom", null);
+        advanceMillis(200);
+        sdk.logEvent("Boom", null);
+        sdk.logEvent("Foo", null);
+        advanceMillis(199);
+        sdk.logEvent("Qux", null);
+
+        verify(intercom, times(3)).logEvent("Boom");
+        verify(intercom, never()).logEvent("Foo");
+        verify(intercom, never()).logEvent("Qux");
+
+        advanceMillis(1);
+        sdk.logEvent("Bar", null);
+
+        verify(intercom).logEvent("Bar");
+    }
+
+    private void advanceMillis(long millis) {
+        now += TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
@@ -0,0 +1,71 @@
+package com.segment.analytics.android.integrations.intercom;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+public class EventAggregatorTest {
+    private final ManualTimer timer = new ManualTimer();
+    private final List<String> logged = new ArrayList<>();
+    private EventAggregator aggregator;
+
+    @Before
+    public void setUp() {
+        FlushScheduler scheduler = new FlushScheduler(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, timer);
+        aggregator = new EventAggregator(new EventAggregator.Sink() {
+            @Override
+            public void logEvent(String eventName, Map<String, Object> metadata) {
+                logged.add(eventName + " " + metadata);
+            }
+        }, Collections.singleton("Viewed Article"), 300, scheduler);
+    }
+
+    @Test
+    public void occurrencesAreRolledUpUntilTheIntervalCloses() {
+        aggregator.add("123", "Viewed Article", Collections.<String, Object>singletonMap("words", 100));
+        timer.advance(200);
+        aggregator.add("123", "Viewed Article", Collections.<String, Object>singletonMap("words", 50));
+        assertThat(logged).isEmpty();
+
+        timer.advance(100);
+
+        assertThat(logged).containsExactly("Viewed Article {count=2, words_sum=150}");
+    }
+
+    @Test
+    public void flushingEarlyDoesNotCutTheNextIntervalShort() {
+        aggregator.add("123", "Viewed Article", null);
+        aggregator.flush();
+        timer.advance(100);
+        aggregator.add("123", "Viewed Article", null);
+
+        // Past the end of the first interval, but not of the second.
+        timer.advance(250);
+        assertThat(logged).containsExactly("Viewed Article {count=1}");
+
+        timer.advance(50);
+        assertThat(logged).containsExactly("Viewed Article {count=1}", "Viewed Article {count=1}");
+    }
+
+    @Test
+    public void eventForAnotherUserSendsThePendingRollupsFirst() {
+        aggregator.add("123", "Viewed Article", null);
+        aggregator.add("456", "Viewed Article", null);
+
+        assertThat(logged).containsExactly("Viewed Article {count=1}");
+
+        timer.advance(300);
+        assertThat(logged).containsExactly("Viewed Article {count=1}", "Viewed Article {count=1}");
+    }
+}
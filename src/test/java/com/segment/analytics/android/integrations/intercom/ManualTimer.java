@@ -0,0 +1,41 @@
+package com.segment.analytics.android.integrations.intercom;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/** A {@link FlushScheduler.Timer} that only runs tasks when it is moved forward. */
+final class ManualTimer implements FlushScheduler.Timer {
+    private final List<Long> dueTimes = new ArrayList<>();
+    private final List<FutureTask<Void>> tasks = new ArrayList<>();
+    private long nowMillis;
+
+    @Override
+    public Future<?> schedule(Runnable task, long delayMillis) {
+        FutureTask<Void> future = new FutureTask<>(task, null);
+        dueTimes.add(nowMillis + delayMillis);
+        tasks.add(future);
+        return future;
+    }
+
+    /** Moves the time forward by {@code millis}, running the tasks that are due. */
+    void advance(long millis) {
+        nowMillis += millis;
+        List<FutureTask<Void>> due = new ArrayList<>();
+        Iterator<Long> dueTime = dueTimes.iterator();
+        for (Iterator<FutureTask<Void>> task = tasks.iterator(); task.hasNext(); ) {
+            FutureTask<Void> next = task.next();
+            if (dueTime.next() <= nowMillis) {
+                due.add(next);
+                task.remove();
+                dueTime.remove();
+            }
+        }
+        for (FutureTask<Void> task : due) {
+            // Does nothing if the task was cancelled.
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.segment.analytics.android.integrations.intercom;
+
+import android.app.Application;
+import android.content.Context;
+import com.segment.analytics.core.tests.BuildConfig;
+import com.segment.analytics.integrations.Logger;
+import io.intercom.android.sdk.Intercom;
+import io.intercom.android.sdk.identity.Registration;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static com.segment.analytics.Analytics.LogLevel.VERBOSE;
+import static org.assertj.core.api.Java6Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class RegistrationStateMachineTest {
+    @Mock Intercom intercom;
+    private IntercomSdk sdk;
+    private RegistrationStateMachine registration;
+
+    @Before
+    public void setUp() {
+        initMocks(this);
+        Logger logger = Logger.with(VERBOSE);
+        IntercomInitializer initializer = new IntercomInitializer(
+            IntercomInitializer.Mode.EAGER,
+            RuntimeEnvironment.application,
+            "123",
+            "123",
+            new IntercomIntegration.Initializer() {
+                @Override
+                public void initialize(Application application, String mobileApiKey, String appId) {
+                }
+            },
+            new IntercomIntegration.Provider() {
+                @Override
+                public Intercom get() {
+                    return intercom;
+                }
+            },
+            null,
+            logger);
+        sdk = new IntercomSdk(initializer, IntercomIntegration.MetricsListener.NONE, logger, null,
+            null, null);
+        registration = new RegistrationStateMachine(RuntimeEnvironment.application
+            .getSharedPreferences("registration-test", Context.MODE_PRIVATE));
+    }
+
+    @Test
+    public void unidentifiedKeepsAUserIdentifiedWhileWaitingForTheLock()
+        throws InterruptedException {
+        Thread anonymous = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                registration.identify(sdk, null, null);
+            }
+        });
+        synchronized (registration) {
+            // The registration is unknown, so the anonymous identify has to wait for the lock.
+            anonymous.start();
+            while (anonymous.getState() != Thread.State.BLOCKED) {
+                Thread.sleep(1);
+            }
+            registration.identify(sdk, "123", null);
+        }
+        anonymous.join(5000);
+
+        verify(intercom).registerIdentifiedUser(any(Registration.class));
+        verify(intercom, never()).registerUnidentifiedUser();
+        assertThat(registration.state().kind).isEqualTo(RegistrationStateMachine.Kind.IDENTIFIED);
+        assertThat(registration.state().userId).isEqualTo("123");
+    }
+}
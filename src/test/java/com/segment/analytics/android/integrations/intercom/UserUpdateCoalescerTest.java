@@ -0,0 +1,77 @@
+package com.segment.analytics.android.integrations.intercom;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+public class UserUpdateCoalescerTest {
+    private final ManualTimer timer = new ManualTimer();
+    private final List<String> sent = new ArrayList<>();
+    private UserUpdateCoalescer coalescer;
+
+    @Before
+    public void setUp() {
+        FlushScheduler scheduler = new FlushScheduler(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, timer);
+        coalescer = new UserUpdateCoalescer(new UserUpdateCoalescer.Sink() {
+            @Override
+            public void updateUser(String userKey, UserUpdate userUpdate) {
+                sent.add(userKey + " " + userUpdate.standard);
+            }
+        }, 300, scheduler);
+    }
+
+    @Test
+    public void updatesAreMergedUntilTheWindowCloses() {
+        coalescer.add("123", update(UserUpdate.NAME, "Brennan"));
+        timer.advance(200);
+        coalescer.add("123", update(UserUpdate.EMAIL, "testing@segment.com"));
+        assertThat(sent).isEmpty();
+
+        timer.advance(100);
+
+        assertThat(sent).containsExactly("123 {name=Brennan, email=testing@segment.com}");
+    }
+
+    @Test
+    public void flushingEarlyDoesNotCutTheNextWindowShort() {
+        coalescer.add("123", update(UserUpdate.NAME, "Brennan"));
+        coalescer.flush();
+        timer.advance(100);
+        coalescer.add("123", update(UserUpdate.EMAIL, "testing@segment.com"));
+
+        // Past the end of the first window, but not of the second.
+        timer.advance(250);
+        assertThat(sent).containsExactly("123 {name=Brennan}");
+
+        timer.advance(50);
+        assertThat(sent).containsExactly(
+            "123 {name=Brennan}", "123 {email=testing@segment.com}");
+    }
+
+    @Test
+    public void updateForAnotherUserSendsThePendingOneFirst() {
+        coalescer.add("123", update(UserUpdate.NAME, "Brennan"));
+        coalescer.add("456", update(UserUpdate.NAME, "Prateek"));
+
+        assertThat(sent).containsExactly("123 {name=Brennan}");
+
+        timer.advance(300);
+        assertThat(sent).containsExactly("123 {name=Brennan}", "456 {name=Prateek}");
+    }
+
+    private static UserUpdate update(String key, Object value) {
+        return new UserUpdate(Collections.singletonMap(key, value),
+            Collections.<String, Object>emptyMap(), null);
+    }
+}